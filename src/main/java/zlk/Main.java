@@ -25,6 +25,7 @@ import zlk.core.Builtin;
 import zlk.idcalc.ExpOrPattern;
 import zlk.idcalc.IcModule;
 import zlk.nameeval.NameEvaluator;
+import zlk.optimizer.Optimizer;
 import zlk.parser.Lexer;
 import zlk.parser.Parser;
 import zlk.parser.Tokenized;
@@ -117,7 +118,8 @@ public class Main {
 		System.out.println();
 
 		System.out.println("-- AST --");
-		Module ast = Parser.parse(tokens);
+		// 大きなモジュールでは-Dzlk.packrat=trueで解析結果を記録して再解析を避ける
+		Module ast = Parser.parse(tokens, Boolean.getBoolean("zlk.packrat"));
 		System.out.println(ast.buildString());
 		System.out.println();
 
@@ -164,6 +166,11 @@ public class Main {
 		clconv.pp(System.out);
 		System.out.println();
 
+		System.out.println("-- OPTIMIZE --");
+		CcModule optimized = Optimizer.optimize(clconv, types);
+		optimized.pp(System.out);
+		System.out.println();
+
 		System.out.println("-- BYTECODE GEN --");
 
 		Map<String, byte[]> classBins = new HashMap<>();
@@ -180,7 +187,7 @@ public class Main {
 				}
 			};
 
-		new BytecodeGenerator(clconv, types, Builtin.functions(), name).compile(fileWriter);
+		new BytecodeGenerator(optimized, types, Builtin.functions(), name).compile(fileWriter);
 
 		System.out.println();
 		System.out.println("-- EXECUTE --");
@@ -3,17 +3,24 @@ package zlk.bytecodegen;
 import static zlk.util.ErrorUtils.neverHappen;
 
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import zlk.bytecodegen.DecisionTree.Occurrence;
 import zlk.clcalc.CcCaseBranch;
 import zlk.clcalc.CcCtor;
 import zlk.clcalc.CcExp;
@@ -56,9 +63,13 @@ public final class BytecodeGenerator {
 	private final IdMap<JavaType> javaClasses;
 	private final IdMap<CcCtor> ctors;
 	private final Seq<CustomType> customTypes;
+	private final IdMap<Seq<CcFunDecl>> tailCallGroups;
+	private final IdMap<String> workerDescs;
 	private ClassWriter cw;
 
 	private static final Id LOCAL_DUMMY_ID = Id.intern("..DUMMY..");
+	/** 1度にまとめて適用できる引数の最大数．{@code zlk.runtime.ZlkFunction4}に対応する */
+	private static final int MAX_CLOSURE_ARITY = 4;
 	private static final Handle LAMBDA_METAFACTORY = new Handle(
 			Opcodes.H_INVOKESTATIC,
 			"java/lang/invoke/LambdaMetafactory",
@@ -71,9 +82,20 @@ public final class BytecodeGenerator {
 			+ "Ljava/lang/invoke/MethodType;"
 			+ ")Ljava/lang/invoke/CallSite;",
 			false);
+	private static final Handle CONSTANT_BOOTSTRAP = new Handle(
+			Opcodes.H_INVOKESTATIC,
+			"java/lang/invoke/ConstantBootstraps",
+			"invoke",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;"
+			+ "Ljava/lang/String;"
+			+ "Ljava/lang/Class;"
+			+ "Ljava/lang/invoke/MethodHandle;"
+			+ "[Ljava/lang/Object;"
+			+ ")Ljava/lang/Object;",
+			false);
 	private static final Handle RECORD_LITERAL_BOOTSTRAP = new Handle(
 			Opcodes.H_INVOKESTATIC,
-			"zlk/runtime/ArrayRecord",
+			"zlk/runtime/ShapeRecord",
 			"bootstrapLiteral",
 			"(Ljava/lang/invoke/MethodHandles$Lookup;"
 			+ "Ljava/lang/String;"
@@ -81,11 +103,40 @@ public final class BytecodeGenerator {
 			+ "Ljava/lang/String;"
 			+ ")Ljava/lang/invoke/CallSite;",
 			false);
+	private static final Handle RECORD_GET_BOOTSTRAP = new Handle(
+			Opcodes.H_INVOKESTATIC,
+			"zlk/runtime/ShapeRecord",
+			"bootstrapGet",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;"
+			+ "Ljava/lang/String;"
+			+ "Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/String;"
+			+ ")Ljava/lang/invoke/CallSite;",
+			false);
+	private static final Handle RECORD_UPDATE_BOOTSTRAP = new Handle(
+			Opcodes.H_INVOKESTATIC,
+			"zlk/runtime/ShapeRecord",
+			"bootstrapUpdate",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;"
+			+ "Ljava/lang/String;"
+			+ "Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/String;"
+			+ ")Ljava/lang/invoke/CallSite;",
+			false);
 
 	// for compileDecl
 	private SeqBuffer<Id> locals;
+	private Set<Id> unboxedLocals;  // intとして格納しているローカル変数
 	private MethodVisitor mv;
 	private Stack<Runnable> pendings;
+	private IdMap<TailCallEntry> tailCallEntries;  // 末尾呼出しをjumpに置き換えられる関数の入口
+
+	/**
+	 * 末尾呼出しのjump先
+	 * @param label 引数パターンの分解より前に置いた入口
+	 * @param params 引数スロットに格納する値の型
+	 */
+	private record TailCallEntry(Label label, Seq<JavaType> params) {}
 
 	public BytecodeGenerator(CcModule module, IdMap<Type> types, Seq<Builtin> builtins, String origin) {
 		this.module = module;
@@ -98,6 +149,8 @@ public final class BytecodeGenerator {
 		this.ctors = new IdMap<>();
 		this.customTypes = module.types().map(decl -> new CustomType(module.name(), decl, origin));
 		this.pendings = new Stack<>();
+		this.tailCallGroups = new IdMap<>();
+		this.workerDescs = new IdMap<>();
 
 		javaClasses.put(Type.UNIT.id(), JavaType.VOID);
 		javaClasses.put(Type.BOOL.id(), new JavaType.Simple("java/lang/Boolean"));
@@ -116,8 +169,15 @@ public final class BytecodeGenerator {
 			toplevelDescs.put(decl.id(), getDescription(decl));
 			toplevelDecls.put(decl.id(), decl);
 		});
+		TailCallGroups.find(module).forEach(group ->
+				group.forEach(decl -> tailCallGroups.put(decl.id(), group)));
+		module.funcs().forEach(decl -> {
+			if(hasWorker(decl)) {
+				workerDescs.put(decl.id(), getWorkerDescription(decl));
+			}
+		});
 
-		customTypes.forEach(generator -> generator.compile(OPCODE_VERSION, this::toDesc, fileWriter));
+		customTypes.forEach(generator -> generator.compile(OPCODE_VERSION, this::toComponentDesc, fileWriter));
 		genMainClass(fileWriter);
 	}
 
@@ -125,25 +185,28 @@ public final class BytecodeGenerator {
 		cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
 			/*
 			 * フロー合流箇所のframeの計算でカスタム型名を求める．
-			 * カスタム型のvariant以外の型はここに持ち込まなれない想定．
+			 * 同じカスタム型のvariant同士はそのsealed interfaceへ合流する．
+			 * 自己末尾呼出しで引数スロットへ値を書き戻すため，それ以外の型もここに持ち込まれうる．
+			 * それらはjava/lang/Objectへ合流させ，使用箇所のcheckcastに任せる．
 			 * FUTURE: 将来ZLKへrecord型を追加する場合，ここでの型合流処理の対象とするか？
 			 */
 			@Override
 			protected String getCommonSuperClass(String type1, String type2) {
-				String type1Super = dropAfterLastDollar(type1);
-				String type2Super = dropAfterLastDollar(type2);
+				String type1Super = toUnionClassName(type1);
+				String type2Super = toUnionClassName(type2);
 
 				if(!type1Super.equals(type2Super)) {
-					throw new IllegalArgumentException(
-							"super type not match: arg1="+ type1 + ", arg2=" + type2);
+					return JavaType.OBJECT.toClassName();
 				}
 				return type1Super;
 			}
 
-			private String dropAfterLastDollar(String target) {
-				int index = target.lastIndexOf('$');
-				if(index != -1) {
-					target = target.substring(0, index);
+			private String toUnionClassName(String target) {
+				for(JavaType javaType : javaClasses.values()) {
+					if(javaType instanceof JavaType.Variant(String className, String _, String union)
+							&& className.equals(target)) {
+						return union;
+					}
 				}
 				return target;
 			}
@@ -163,7 +226,15 @@ public final class BytecodeGenerator {
 
 		customTypes.forEach(ct -> ct.registerNestMembers(cw));
 
-		module.funcs().forEach(decl -> compileDecl(decl));
+		module.funcs().forEach(decl -> {
+			Seq<CcFunDecl> group = tailCallGroups.getOrNull(decl.id());
+			if(group == null) {
+				compileDecl(decl);
+			} else if(group.head() == decl) {
+				group.forEachIndexed((selector, member) -> compileTailCallGroupEntry(member, group, selector));
+				compileTailCallGroup(group);
+			}
+		});
 
 		cw.visitEnd();
 
@@ -190,10 +261,191 @@ public final class BytecodeGenerator {
 		mv.visitEnd();
 	}
 
-	private void compileDecl(CcFunDecl decl) { // TODO トップレベルは全て非カリー化する
+	private void compileDecl(CcFunDecl decl) {
+		Id id = decl.id();
+		try {
+			String workerDesc = workerDescs.getOrNull(id);
+			if(decl.arity() == 0) {
+				// 引数のない宣言は初回の参照で1度だけ評価する
+				String initName = javaMethodName(Id.intern(id, "$init"));
+				compileMethod(
+						decl,
+						initName,
+						Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+						toplevelDescs.get(id),
+						this::toJavaType);
+				compileConstantEntry(decl, initName);
+			} else if(workerDesc == null) {
+				compileMethod(
+						decl,
+						javaMethodName(id),
+						Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC,
+						toplevelDescs.get(id),
+						this::toJavaType);
+			} else {
+				compileMethod(
+						decl,
+						javaMethodName(id),
+						Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC,
+						workerDesc,
+						this::toUnboxedJavaType);
+				compileBoxingEntry(decl, workerDesc);
+			}
+
+			while(!pendings.isEmpty()) {
+				pendings.pop().run();
+			}
+		} catch(RuntimeException e) {
+			throw new RuntimeException("on method "+id, e);
+		}
+	}
+
+	/**
+	 * 関数本体をメソッドとして生成する．
+	 * @param decl 関数
+	 * @param name メソッド名
+	 * @param access メソッドのアクセスフラグ
+	 * @param desc メソッドのディスクリプタ
+	 * @param mapper 引数と戻り値の型からメソッド上での表現を求める関数
+	 */
+	private void compileMethod(
+			CcFunDecl decl,
+			String name,
+			int access,
+			String desc,
+			Function<Type, JavaType> mapper) {
+		Id id = decl.id();
+		this.locals = new SeqBuffer<>();
+		this.unboxedLocals = new HashSet<>();
+		mv = cw.visitMethod(
+				access,
+				name,
+				desc,
+				null,
+				null);
+
+		mv.visitCode();
+		Seq<JavaType> params = types.get(id).flatten().take(decl.arity()).map(mapper);
+		Label entry = new Label();
+		tailCallEntries = IdMap.of(id, new TailCallEntry(entry, params));
+		mv.visitLabel(entry);  // 引数パターンの分解からやり直すため分解の前に置く
+		registerArgs(decl.args());
+		decl.args().forEachIndexed((i, arg) -> {
+			if(arg instanceof IcPattern.Var var && params.at(i) instanceof JavaType.Primitive) {
+				unboxedLocals.add(var.id());
+			}
+		});
+		JavaType retTy = mapper.apply(types.get(id).dropArgs(decl.arity()));
+		compile(decl.body(), retTy, true);
+		genReturn(retTy);
+		mv.visitMaxs(-1, -1); // compute all frames and local automatically
+		mv.visitEnd();
+	}
+
+	/**
+	 * unboxedな引数と戻り値を持つメソッド（worker）に委譲する公開メソッドを生成する．
+	 * 関数オブジェクトや他のモジュールからはこちらを呼ぶ．
+	 *
+	 * <pre>{@code
+	 * public static Integer f(Integer a, Object b) {
+	 *     return Integer.valueOf(f(a.intValue(), b));
+	 * }
+	 * }</pre>
+	 */
+	private void compileBoxingEntry(CcFunDecl decl, String workerDesc) {
+		Id id = decl.id();
+		mv = cw.visitMethod(
+				Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC,
+				javaMethodName(id),
+				toplevelDescs.get(id),
+				null,
+				null);
+
+		mv.visitCode();
+		types.get(id).flatten().take(decl.arity()).forEachIndexed((i, argTy) -> {
+			mv.visitVarInsn(Opcodes.ALOAD, i);
+			coerce(toJavaType(argTy), toUnboxedJavaType(argTy));
+		});
+		mv.visitMethodInsn(
+				Opcodes.INVOKESTATIC,
+				module.name(),
+				javaMethodName(id),
+				workerDesc,
+				false);
+		Type retTy = types.get(id).dropArgs(decl.arity());
+		coerce(toUnboxedJavaType(retTy), toJavaType(retTy));
+		genReturn(toJavaType(retTy));
+		mv.visitMaxs(-1, -1);
+		mv.visitEnd();
+	}
+
+	/**
+	 * 引数のない宣言の値を返す公開メソッドを生成する．
+	 * 値は初回の実行時にinitNameのメソッドで計算し，以後はConstantDynamicとして共有する．
+	 *
+	 * <pre>{@code
+	 * public static T f() {
+	 *     return ldc(f = ConstantBootstraps.invoke(f$$init));
+	 * }
+	 * }</pre>
+	 */
+	private void compileConstantEntry(CcFunDecl decl, String initName) {
+		Id id = decl.id();
+		String desc = toplevelDescs.get(id);
+		mv = cw.visitMethod(
+				Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC,
+				javaMethodName(id),
+				desc,
+				null,
+				null);
+
+		mv.visitCode();
+		mv.visitLdcInsn(new ConstantDynamic(
+				javaMethodName(id),
+				toJavaType(types.get(id)).toDesc(),
+				CONSTANT_BOOTSTRAP,
+				new Handle(Opcodes.H_INVOKESTATIC, module.name(), initName, desc, false)));
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(-1, -1);
+		mv.visitEnd();
+	}
+
+	/**
+	 * unboxedな引数と戻り値を持つメソッドを別に作るか判定する．
+	 * 型変数を含まず，引数か戻り値にI32かBoolを持つ関数が対象．
+	 * 末尾呼出しの組の関数は引数スロットをObjectで共有するため対象外．
+	 */
+	private boolean hasWorker(CcFunDecl decl) {
+		if(decl.arity() == 0 || tailCallGroups.containsKey(decl.id())) {
+			return false;
+		}
+		Type funTy = types.get(decl.id());
+		if(!funTy.getVarNames().isEmpty()) {
+			return false;
+		}
+		return Seq.concat(funTy.flatten().take(decl.arity()), Seq.of(funTy.dropArgs(decl.arity())))
+				.anyMatch(ty -> toUnboxedJavaType(ty) instanceof JavaType.Primitive);
+	}
+
+	private String getWorkerDescription(CcFunDecl decl) {
+		Type funTy = types.get(decl.id());
+		int arity = decl.arity();
+		return toMethodDesc(funTy.flatten().take(arity), funTy.dropArgs(arity), this::toUnboxedJavaType);
+	}
+
+	/**
+	 * 末尾呼出しの組に属する関数の公開メソッドを生成する．
+	 * 不足する引数スロットをnullで埋め，自身の番号を付けて組のメソッドへ委譲する．
+	 *
+	 * <pre>{@code
+	 * static R f(A a, B b) {
+	 *     return (R) f$$tailGroup(a, b, null, 0);
+	 * }
+	 * }</pre>
+	 */
+	private void compileTailCallGroupEntry(CcFunDecl decl, Seq<CcFunDecl> group, int selector) {
 		Id id = decl.id();
 		try {
-			this.locals = new SeqBuffer<>();
 			mv = cw.visitMethod(
 					Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC,
 					javaMethodName(id),
@@ -202,26 +454,125 @@ public final class BytecodeGenerator {
 					null);
 
 			mv.visitCode();
-			registerArgs(decl.args());
-			Type retTy = types.get(id).dropArgs(decl.arity());
-			compile(decl.body(), toJavaType(retTy));
+			int slots = tailCallGroupSlots(group);
+			for(int i = 0; i < slots; i++) {
+				if(i < decl.arity()) {
+					mv.visitVarInsn(Opcodes.ALOAD, i);
+				} else {
+					mv.visitInsn(Opcodes.ACONST_NULL);
+				}
+			}
+			mv.visitLdcInsn(selector);
+			mv.visitMethodInsn(
+					Opcodes.INVOKESTATIC,
+					module.name(),
+					javaMethodName(tailCallGroupId(group)),
+					tailCallGroupDesc(slots),
+					false);
+			JavaType retTy = toJavaType(types.get(id).dropArgs(decl.arity()));
+			checkcastIfNeed(JavaType.OBJECT, retTy);
 			genReturn(retTy);
-			mv.visitMaxs(-1, -1); // compute all frames and local automatically
+			mv.visitMaxs(-1, -1);
+			mv.visitEnd();
+		} catch(RuntimeException e) {
+			throw new RuntimeException("on method "+id, e);
+		}
+	}
+
+	/**
+	 * 末尾呼出しで互いに呼び合う関数の組を1つのメソッドにまとめて生成する．
+	 * 組の中の末尾呼出しは，引数スロットへの代入と呼出し先の入口へのjumpになる．
+	 *
+	 * <pre>{@code
+	 * static Object f$$tailGroup(Object slot0, Object slot1, Object slot2, int selector) {
+	 *     switch(selector) {
+	 *     case 0: f: ... // slot0, slot1を引数とするfの本体
+	 *     case 1: g: ... // slot0, slot1, slot2を引数とするgの本体
+	 *     }
+	 * }
+	 * }</pre>
+	 */
+	private void compileTailCallGroup(Seq<CcFunDecl> group) {
+		Id groupId = tailCallGroupId(group);
+		try {
+			int slots = tailCallGroupSlots(group);
+			mv = cw.visitMethod(
+					Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
+					javaMethodName(groupId),
+					tailCallGroupDesc(slots),
+					null,
+					null);
+
+			mv.visitCode();
+			Label[] entries = new Label[group.size()];
+			tailCallEntries = new IdMap<>();
+			for(int i = 0; i < entries.length; i++) {
+				entries[i] = new Label();
+				CcFunDecl decl = group.at(i);
+				Seq<JavaType> params = types.get(decl.id()).flatten().take(decl.arity()).map(this::toJavaType);
+				tailCallEntries.put(decl.id(), new TailCallEntry(entries[i], params));
+			}
+			mv.visitVarInsn(Opcodes.ILOAD, slots);
+			mv.visitTableSwitchInsn(0, entries.length - 1, entries[0], entries);
+
+			group.forEachIndexed((i, decl) -> {
+				this.locals = new SeqBuffer<>();
+				this.unboxedLocals = new HashSet<>();
+				mv.visitLabel(entries[i]);
+
+				// 引数スロットはObjectとして宣言されているので本体が期待する型へ絞り込む
+				Seq<Type> argTys = types.get(decl.id()).flatten().take(decl.arity());
+				argTys.forEachIndexed((slot, argTy) -> {
+					JavaType argJavaType = toJavaType(argTy);
+					if(JavaType.OBJECT.castRequired(argJavaType)) {
+						mv.visitVarInsn(Opcodes.ALOAD, slot);
+						checkcast(argJavaType);
+						mv.visitVarInsn(Opcodes.ASTORE, slot);
+					}
+				});
+
+				registerArgs(decl.args(), slots + 1);
+				Type retTy = types.get(decl.id()).dropArgs(decl.arity());
+				compile(decl.body(), toJavaType(retTy), true);
+				mv.visitInsn(Opcodes.ARETURN);
+			});
+			mv.visitMaxs(-1, -1);
 			mv.visitEnd();
 
 			while(!pendings.isEmpty()) {
 				pendings.pop().run();
 			}
 		} catch(RuntimeException e) {
-			throw new RuntimeException("on method "+id, e);
+			throw new RuntimeException("on method "+groupId, e);
 		}
 	}
 
+	private static Id tailCallGroupId(Seq<CcFunDecl> group) {
+		return Id.intern(group.head().id(), "$tailGroup");
+	}
+
+	private static int tailCallGroupSlots(Seq<CcFunDecl> group) {
+		return group.fold((decl, max) -> Math.max(decl.arity(), max), 0, max -> max);
+	}
+
+	private static String tailCallGroupDesc(int slots) {
+		return "(" + JavaType.OBJECT.toDesc().repeat(slots) + "I)" + JavaType.OBJECT.toDesc();
+	}
+
 	/**
 	 * 関数の引数をlocalsに登録する
 	 * @param args 引数
 	 */
 	private void registerArgs(Seq<IcPattern> args) {
+		registerArgs(args, args.size());
+	}
+
+	/**
+	 * 関数の引数をlocalsに登録する
+	 * @param args 引数
+	 * @param reservedSlots 引数の後に続くものも含めて予約済みのローカル変数スロット数
+	 */
+	private void registerArgs(Seq<IcPattern> args, int reservedSlots) {
 		args.forEach(arg -> {
 			if(arg instanceof IcPattern.Var var) {
 				locals.add(var.id());
@@ -229,11 +580,13 @@ public final class BytecodeGenerator {
 				locals.add(LOCAL_DUMMY_ID);
 			}
 		});
+		while(locals.size() < reservedSlots) {
+			locals.add(LOCAL_DUMMY_ID);
+		}
 
 		for (int i = 0; i < args.size(); i++) {
 			if(args.at(i) instanceof IcPattern.Dector ctor) {
-				Type subClassTy = types.get(ctor.ctor().id());
-				loadLocal(i, subClassTy);
+				mv.visitVarInsn(Opcodes.ALOAD, i);
 				registerArgRec(ctor);
 			} else if(args.at(i) instanceof IcPattern.Record record) {
 				mv.visitVarInsn(Opcodes.ALOAD, i);
@@ -251,7 +604,7 @@ public final class BytecodeGenerator {
 		case IcPattern.Var(Id id, Location _) -> {
 			Type varType = types.get(id);
 			checkcastIfNeed(JavaType.OBJECT, toJavaType(varType));
-			storeLocal(locals.size(), varType);
+			storeLocal(locals.size(), toJavaType(varType));
 			locals.add(id);
 		}
 		case IcPattern.Dector(IcExp.IcVarCtor ctor, Seq<IcPattern.Arg> args, Location _) -> {
@@ -265,14 +618,20 @@ public final class BytecodeGenerator {
 				mv.visitInsn(Opcodes.DUP);
 			}
 
+			CcCtor ctorDecl = ctors.get(ctor.id());
 			for(int fieldIdx = 0; fieldIdx < args.size(); fieldIdx++) {
 				IcPattern.Arg ctorArg = args.at(fieldIdx);
+				JavaType componentTy = toUnboxedJavaType(ctorDecl.args().at(fieldIdx));
 				mv.visitFieldInsn(
 						Opcodes.GETFIELD,
 						javaClasses.get(ctor.id()).toClassName(),
 						CustomType.componentName(fieldIdx),
-						toDesc(ctorArg.type()));
-				registerArgRec(ctorArg.pattern());
+						componentTy.toDesc());
+				if(componentTy instanceof JavaType.Primitive unboxed) {
+					storeUnboxedComponent(ctorArg.pattern(), unboxed);
+				} else {
+					registerArgRec(ctorArg.pattern());
+				}
 			}
 		}
 		case IcPattern.Record(Seq<IcPattern.RecordField> fields, Location _) -> {
@@ -281,13 +640,7 @@ public final class BytecodeGenerator {
 			for(int i = 0; i < fields.size(); i++) {
 				if(i < fields.size() - 1) mv.visitInsn(Opcodes.DUP);
 				IcPattern.RecordField field = fields.at(i);
-				mv.visitLdcInsn(field.name());
-				mv.visitMethodInsn(
-						Opcodes.INVOKEINTERFACE,
-						JavaType.RECORD.toClassName(),
-						"get",
-						"(Ljava/lang/String;)Ljava/lang/Object;",
-						true);
+				genRecordGet(field.name());
 				registerArgRec(field.pattern());
 			}
 		}
@@ -299,56 +652,92 @@ public final class BytecodeGenerator {
 	 *
 	 * Javaの型消去方式に対応するため，期待される戻り値型の上限境界を指定し，
 	 * 満たせない場合ダウンキャストを補う．
+	 * 上限境界がintやbooleanのときはunboxedな値を，参照型のときはboxedな値を残す．
 	 *
 	 * @param exp
 	 * @param ubTy 式がstackに残す値の上限境界の型
 	 */
 	private void compile(CcExp exp, JavaType ubTy) {
+		compile(exp, ubTy, false);
+	}
+
+	/**
+	 * 式に対応するバイトコードを生成する．
+	 *
+	 * 末尾位置にあるコンパイル中の関数自身の呼出しは，引数スロットへの代入と
+	 * メソッド先頭へのjumpに置き換える．
+	 *
+	 * @param exp
+	 * @param ubTy 式がstackに残す値の上限境界の型
+	 * @param tail 式がメソッドの末尾位置にあるか
+	 */
+	private void compile(CcExp exp, JavaType ubTy, boolean tail) {
 		switch (exp) {
 		case CcCnst(ConstValue value, Location _) -> {
 			loadCnst(value);
+			coerce(toUnboxedJavaType(value.type()), ubTy);
 		}
 		case CcVar(Id id, Location _) -> {
 			int localIndex = locals.indexOf(id);
 			if(localIndex == -1) {
 				throw new Error("No such locals: "+id);
 			}
-			loadLocal(localIndex, types.get(id));
+			JavaType localTy = unboxedLocals.contains(id)
+					? toUnboxedJavaType(types.get(id))
+					: toJavaType(types.get(id));
+			loadLocal(localIndex, localTy);
+			coerce(localTy, ubTy);
 		}
 		case CcDirectApp(Id funId, Seq<CcExp> args, Location _) -> {
 			Type funTy = types.get(funId);
 			Seq<Type> flattenTys = funTy.flatten();
 
+			if(tail && isJumpableTailCall(funId, args)) {
+				genTailCallJump(funId, args);
+				return;
+			}
+
 			getDecl(funId, descriptor -> {
+				// workerがあれば引数を揃えた呼出しはunboxedなままworkerへ渡す
+				String workerDesc = workerDescs.getOrNull(funId);
+				Function<Type, JavaType> mapper = workerDesc == null ? this::toJavaType : this::toUnboxedJavaType;
+
 				// 全ての引数をstackに載せる
-				args.forEachIndexed((i, arg) -> compile(arg, toJavaType(flattenTys.at(i))));  // TODO: zipがあると簡潔
+				args.forEachIndexed((i, arg) -> compile(arg, mapper.apply(flattenTys.at(i))));  // TODO: zipがあると簡潔
 
 				mv.visitMethodInsn(
 						Opcodes.INVOKESTATIC,
 						module.name(),
 						javaMethodName(funId),
-						descriptor,
+						workerDesc == null ? descriptor : workerDesc,
 						false);
 
-				JavaType stackTopTy = toJavaType(funTy.dropArgs(args.size()));
-				checkcastIfNeed(stackTopTy, ubTy);
+				JavaType stackTopTy = mapper.apply(funTy.dropArgs(args.size()));
+				coerce(stackTopTy, ubTy);
 			}, builtin -> {
 				// 全ての引数をstackに載せる
-				args.forEachIndexed((i, arg) -> compile(arg, toJavaType(flattenTys.at(i))));  // TODO: zipがあると簡潔
+				args.forEachIndexed((i, arg) -> compile(arg, toUnboxedJavaType(flattenTys.at(i))));  // TODO: zipがあると簡潔
 				builtin.accept(mv);
+				coerce(toUnboxedJavaType(funTy.dropArgs(args.size())), ubTy);
 			}, ctor -> {
-				// <init>を呼ぶ
 				JavaType subclass = javaClasses.get(ctor.id());
+				if(ctor.args().isEmpty()) {
+					loadSingleton(subclass);
+					checkcastIfNeed(subclass, ubTy);
+					return;
+				}
+
+				// <init>を呼ぶ
 				mv.visitTypeInsn(Opcodes.NEW, subclass.toClassName());
 				mv.visitInsn(Opcodes.DUP);  // 値を返さないのでポインタを複製しておく
 
-				// 全ての引数をstackに載せる
-				args.forEachIndexed((i, arg) -> compile(arg, toJavaType(flattenTys.at(i))));  // TODO: zipがあると簡潔
+				// 全ての引数をcomponentの型でstackに載せる
+				args.forEachIndexed((i, arg) -> compile(arg, toUnboxedJavaType(ctor.args().at(i))));
 				mv.visitMethodInsn(
 						Opcodes.INVOKESPECIAL,
 						subclass.toClassName(),
 						"<init>",
-						toMethodDesc(ctor.args(), Type.UNIT),
+						toMethodDesc(ctor.args(), Type.UNIT, this::toUnboxedJavaType),
 						false);
 
 				checkcastIfNeed(subclass, ubTy);
@@ -357,25 +746,36 @@ public final class BytecodeGenerator {
 		case CcClosureApp(CcExp funExp, Seq<CcExp> args, Location _) -> {
 			compile(funExp, JavaType.FUNCTION);
 
-			compile(args.head(), JavaType.OBJECT);
-			invokeApply();
-			for (CcExp arg : args.tail()) {
-				checkcast(JavaType.FUNCTION);
-				compile(arg, JavaType.OBJECT);
-				invokeApply();
+			// MAX_CLOSURE_ARITY個ずつまとめて適用する
+			for(int from = 0; from < args.size(); from += MAX_CLOSURE_ARITY) {
+				if(from > 0) {
+					checkcast(JavaType.FUNCTION);
+				}
+				Seq<CcExp> chunk = args.slice(from, Math.min(args.size(), from + MAX_CLOSURE_ARITY));
+				chunk.forEach(arg -> compile(arg, JavaType.OBJECT));
+				invokeApply(chunk.size());
 			}
-			checkcastIfNeed(JavaType.OBJECT, ubTy);
+			coerce(JavaType.OBJECT, ubTy);
 		}
 		case CcMkCls(Id implId, Seq<CcExp> caps, Location _) -> {
-			if(ctors.containsKey(implId)) {  // データ型の初期化確認
+			CcCtor ctor = ctors.getOrNull(implId);
+			if(ctor != null && ctor.args().isEmpty()) {
+				// 引数のないコンストラクタは唯一のインスタンスを参照する
+				JavaType subclass = javaClasses.get(implId);
+				loadSingleton(subclass);
+				checkcastIfNeed(subclass, ubTy);
+				return;
+			}
+			if(ctor != null) {  // データ型の初期化確認
 				// 部分適用する前にコンストラクタ用メソッド（<init>とは別）があるか確認
-				ensureCtorOriginal(ctors.get(implId));
+				ensureCtorOriginal(ctor);
 			}
 
 			// 組込みへの対処 TODO 分離
 			Builtin builtinValue = builtins.getOrNull(implId);
 			if(builtinValue != null) {
 				builtinValue.accept(mv);
+				coerce(toUnboxedJavaType(builtinValue.type()), ubTy);
 				return;
 			}
 
@@ -391,152 +791,147 @@ public final class BytecodeGenerator {
 						javaMethodName(implId),
 						toplevelDescs.get(implId),
 						false);
+				coerce(toJavaType(implTy), ubTy);
 				return;
 			}
 
-			loadCurried(implId);
-
-			if(caps.isEmpty()) {
-				checkcastIfNeed(JavaType.FUNCTION, ubTy);
-				return;
-			}
-
-			for (CcExp cap : caps) {
-				checkcast(JavaType.FUNCTION);
-				compile(cap, JavaType.OBJECT);
-				invokeApply();
-			}
-			checkcastIfNeed(JavaType.OBJECT, ubTy);
+			// キャプチャした値を部分適用した関数値を1度に作る
+			Seq<Type> implArgTys = implTy.flatten();
+			caps.forEachIndexed((i, cap) -> compile(cap, toJavaType(implArgTys.at(i))));
+			loadCurried(implId, caps.size());
+			checkcastIfNeed(JavaType.FUNCTION, ubTy);
 		}
 		case CcIf(CcExp cond, CcExp thenExp, CcExp elseExp, Location _) -> {
 			Label l1 = new Label();
 			Label l2 = new Label();
-			compile(cond, toJavaType(Type.BOOL));
-			Primitive.BOOL.genUnboxing(mv);
+			compile(cond, JavaType.BOOL);
 			mv.visitJumpInsn(Opcodes.IFEQ, // = 0; false
 					l1);
-			compile(thenExp, ubTy);
+			compile(thenExp, ubTy, tail);
 			mv.visitJumpInsn(Opcodes.GOTO, l2);
 			mv.visitLabel(l1);
-			compile(elseExp, ubTy);
+			compile(elseExp, ubTy, tail);
 			mv.visitLabel(l2);
 		}
 		case CcLet(Id varName, CcExp boundExp, CcExp body, Location _) -> {
-			Type varTy = types.get(varName);
-			compile(boundExp, toJavaType(varTy));
+			JavaType varTy = toUnboxedJavaType(types.get(varName));
+			compile(boundExp, varTy);
 			locals.add(varName);
+			if(varTy instanceof JavaType.Primitive) {
+				unboxedLocals.add(varName);
+			}
 			storeLocal(locals.size() - 1, varTy);
-			compile(body, ubTy);
+			compile(body, ubTy, tail);
 		}
 		case CcCase(CcExp target, Type targetTy, Seq<CcCaseBranch> branches, Location _) -> {
-			// TODO マッチしないときの例外処理
-			// TODO tableswitchに置き換え（以下のようにしてできるはず）
-			// invokedynamic #0:typeSwitch, 0 2つ目の引数は型リストの前半を無視するとき使う
-			// tableswitch { // -1 to 0
-			// 0: l1
-			// 1: l2
-			// 2: l3
-			// default: lerr
-			// }
-			// BootstrapMethods:
-			// 0: REF_invokeStatic
-			// java/lang/runtime/SwitchBootstraps.typeSwitch:(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;[Ljava/lang/Object;)Ljava/lang/invoke/CallSite;
-			// Method arguments:
-			// Type1
-			// Type2
-			// Type3
-
 			/*
 			 * case e of pat1 -> exp1 pat2 -> exp2 pat3 -> exp3
 			 *
 			 * を
 			 *
-			 * e not match pat1 goto l2 exp1 goto neck :l2 e not match pat2 goto l3 exp2 goto neck
-			 * :l3 exp3 goto neck // stack framesのため :neck
+			 * （決定木：各部分項を高々1度だけ検査し，変数を束縛してl1, l2, l3のいずれかへgoto．
+			 *   2回以上の検査が要る分岐はtag()のtableswitch，それ以外はinstanceofで行う）
+			 * :l1 exp1 goto neck :l2 exp2 goto neck :l3 exp3 goto neck :neck
 			 *
 			 * にする．
 			 */
-			compile(target, toJavaType(targetTy));
+			JavaType targetJavaTy = toJavaType(targetTy);
+			compile(target, targetJavaTy);
 			int caseTargetLocal = locals.size();
 			locals.add(LOCAL_DUMMY_ID);
 			mv.visitVarInsn(Opcodes.ASTORE, caseTargetLocal);
-			Label neck = new Label();
 
-			// マッチしないパターンに遭遇したら次の選択肢に進む
-			SeqBuffer<Id> localsBeforeBranch = new SeqBuffer<>(locals);
-			for (int branchIdx = 0; branchIdx < branches.size(); branchIdx++) {
-				Label nextBranchLabel = (branchIdx < branches.size() - 1) ? new Label() : null;
-				CcCaseBranch branch = branches.at(branchIdx);
-				mv.visitVarInsn(Opcodes.ALOAD, caseTargetLocal);
-				checkMatchAndStoreLocals(branch.pattern(), null, nextBranchLabel); // TODO: Dectorの分解にはdeclTyは要らないのでメソッドを分ける
-				compile(branch.body(), ubTy);
-				mv.visitJumpInsn(Opcodes.GOTO, neck);
+			DecisionTree tree = MatchCompiler.compile(branches, this::siblingCtors);
+			Label[] bodies = new Label[branches.size()];
+			for(int i = 0; i < bodies.length; i++) {
+				bodies[i] = new Label();
+			}
+			boolean[] reached = new boolean[branches.size()];
+			Map<Occurrence, StoredOccurrence> stored = new HashMap<>();
+			stored.put(new Occurrence.Scrutinee(), new StoredOccurrence(caseTargetLocal, targetJavaTy));
+			genDecisionTree(tree, stored, bodies, reached);
 
-				if (nextBranchLabel != null) {
-					mv.visitLabel(nextBranchLabel);
+			// 分岐の本体は決定木から到達するものだけを1度ずつ生成する
+			SeqBuffer<Id> localsAfterTree = locals;
+			Label neck = new Label();
+			for (int branchIdx = 0; branchIdx < branches.size(); branchIdx++) {
+				if(!reached[branchIdx]) {
+					continue;
 				}
-				locals = localsBeforeBranch;
+				locals = new SeqBuffer<>(localsAfterTree);
+				mv.visitLabel(bodies[branchIdx]);
+				compile(branches.at(branchIdx).body(), ubTy, tail);
+				mv.visitJumpInsn(Opcodes.GOTO, neck);
 			}
+			locals = localsAfterTree;
 			mv.visitLabel(neck);
 		}
 		case CcExp.CcRecord(Seq<CcExp.CcRecordField> fields, Location _) -> {
-			// 計算順序は記述順に（この制限は外してもよい）
-			record StoredField(CcExp.CcRecordField field, int localIndex) {}
-			SeqBuffer<StoredField> canonicalFields = new SeqBuffer<>(fields.size());
-			for(CcExp.CcRecordField field : fields) {
-				compile(field.value(), JavaType.OBJECT);
-				int localIndex = locals.size();
-				locals.add(LOCAL_DUMMY_ID);
-				mv.visitVarInsn(Opcodes.ASTORE, localIndex);
-				canonicalFields.add(new StoredField(field, localIndex));
-			}
-			Seq<StoredField> canonicalFieldsSorted = canonicalFields.toSeq().sorted(
-					Comparator.comparing(stored -> stored.field().name()));
-			canonicalFieldsSorted.forEach(stored ->
-				mv.visitVarInsn(Opcodes.ALOAD, stored.localIndex()));
-
-			String descriptor = "(" + "Ljava/lang/Object;".repeat(fields.size())
-					+ ")Lzlk/runtime/ZlkRecord;";
-			StringBuilder encodedNames = new StringBuilder("v1;");
-			canonicalFieldsSorted.forEach(stored -> encodedNames
-					.append(stored.field().name().length())
-					.append('#')
-					.append(stored.field().name()));
+			String encodedNames = genCanonicalFieldValues(fields);
 			mv.visitInvokeDynamicInsn(
 					"recordLiteral",
-					descriptor,
+					"(" + "Ljava/lang/Object;".repeat(fields.size()) + ")Lzlk/runtime/ZlkRecord;",
 					RECORD_LITERAL_BOOTSTRAP,
-					encodedNames.toString());
+					encodedNames);
 			checkcastIfNeed(JavaType.RECORD, ubTy);
 		}
 		case CcExp.CcRecordAccess(CcExp target, String field, Location _) -> {
 			compile(target, JavaType.RECORD);
-			mv.visitLdcInsn(field);
-			mv.visitMethodInsn(
-					Opcodes.INVOKEINTERFACE,
-					JavaType.RECORD.toClassName(),
-					"get",
-					"(Ljava/lang/String;)Ljava/lang/Object;",
-					true);
-			checkcastIfNeed(JavaType.OBJECT, ubTy);
+			genRecordGet(field);
+			coerce(JavaType.OBJECT, ubTy);
 		}
 		case CcExp.CcRecordUpdate(CcExp target, Seq<CcExp.CcRecordField> fields, Location _) -> {
 			compile(target, JavaType.RECORD);
-			for(CcExp.CcRecordField field : fields) {
-				mv.visitLdcInsn(field.name());
-				compile(field.value(), JavaType.OBJECT);
-				mv.visitMethodInsn(
-						Opcodes.INVOKEINTERFACE,
-						JavaType.RECORD.toClassName(),
-						"update",
-						"(Ljava/lang/String;Ljava/lang/Object;)Lzlk/runtime/ZlkRecord;",
-						true);
-			}
+			String encodedNames = genCanonicalFieldValues(fields);
+			mv.visitInvokeDynamicInsn(
+					"recordUpdate",
+					"(Lzlk/runtime/ZlkRecord;" + "Ljava/lang/Object;".repeat(fields.size())
+					+ ")Lzlk/runtime/ZlkRecord;",
+					RECORD_UPDATE_BOOTSTRAP,
+					encodedNames);
 			checkcastIfNeed(JavaType.RECORD, ubTy);
 		}
 		}
 	}
 
+	private boolean isJumpableTailCall(Id funId, Seq<CcExp> args) {
+		return tailCallEntries.containsKey(funId) && args.size() == toplevelDecls.get(funId).arity();
+	}
+
+	/**
+	 * 末尾呼出しを引数スロットの更新と呼出し先の入口へのjumpとして生成する．
+	 * 新しい引数は全て評価してから代入するので，評価中に古い引数を参照してもよい．
+	 */
+	private void genTailCallJump(Id funId, Seq<CcExp> args) {
+		TailCallEntry entry = tailCallEntries.get(funId);
+		args.forEachIndexed((i, arg) -> compile(arg, entry.params().at(i)));
+		for(int i = args.size() - 1; i >= 0; i--) {
+			storeLocal(i, entry.params().at(i));
+		}
+		mv.visitJumpInsn(Opcodes.GOTO, entry.label());
+	}
+
+	/**
+	 * stackトップの値を期待される表現に合わせる．
+	 * unboxedな値と参照の間ではboxingかunboxingを行い，参照同士では必要ならダウンキャストする．
+	 */
+	private void coerce(JavaType actual, JavaType expected) {
+		if(actual == expected) {
+			return;
+		}
+		if(actual instanceof JavaType.Primitive unboxed && unboxed != JavaType.VOID) {
+			Primitive primitive = Primitive.of(unboxed);
+			primitive.genBoxing(mv);
+			checkcastIfNeed(primitive.boxedType, expected);
+		} else if(expected instanceof JavaType.Primitive unboxed && unboxed != JavaType.VOID) {
+			Primitive primitive = Primitive.of(unboxed);
+			checkcastIfNeed(actual, primitive.boxedType);
+			primitive.genUnboxing(mv);
+		} else {
+			checkcastIfNeed(actual, expected);
+		}
+	}
+
 	private void checkcastIfNeed(JavaType actual, JavaType expected) {
 		if(actual.castRequired(expected)) {
 			checkcast(expected);
@@ -547,69 +942,210 @@ public final class BytecodeGenerator {
 	}
 
 	/**
-	 * スタックトップとパターンのマッチをチェックする．
-	 * マッチした場合，値をローカル変数に格納する．
-	 * マッチしなかった場合，次のLabelにjumpする．
-	 * 次のLabelがnullであるとき，チェックは省略される．
+	 * ローカル変数に格納済みの部分項
+	 * @param slot ローカル変数スロット
+	 * @param type 格納した値の型
+	 */
+	private record StoredOccurrence(int slot, JavaType type) {}
+
+	/**
+	 * 決定木に対応するバイトコードを生成する．
+	 * 葉では変数を束縛して分岐の本体へjumpする．
+	 * @param tree
+	 * @param stored この経路で格納済みの部分項．経路ごとに複製して使う
+	 * @param bodies 分岐の本体の入口
+	 * @param reached 葉から到達した分岐を記録する
+	 */
+	private void genDecisionTree(
+			DecisionTree tree,
+			Map<Occurrence, StoredOccurrence> stored,
+			Label[] bodies,
+			boolean[] reached) {
+		switch(tree) {
+		case DecisionTree.Leaf(int branch, Seq<DecisionTree.Binding> bindings) -> {
+			bindings.forEach(binding -> {
+				Id var = binding.var();
+				JavaType occurrenceTy = loadOccurrence(binding.occurrence(), stored);
+				JavaType varTy = occurrenceTy instanceof JavaType.Primitive
+						? occurrenceTy
+						: toJavaType(types.get(var));
+				coerce(occurrenceTy, varTy);
+				int slot = locals.indexOf(var);
+				if(slot == -1) {
+					slot = locals.size();
+					locals.add(var);
+				}
+				if(varTy instanceof JavaType.Primitive) {
+					unboxedLocals.add(var);
+				}
+				storeLocal(slot, varTy);
+			});
+			reached[branch] = true;
+			mv.visitJumpInsn(Opcodes.GOTO, bodies[branch]);
+		}
+		case DecisionTree.Switch(Occurrence occurrence, Seq<DecisionTree.Case> cases, Optional<DecisionTree> fallback) -> {
+			StoredOccurrence target = storeOccurrence(occurrence, stored);
+			// 全てのコンストラクタを覆う場合，最後は検査しなくてよい
+			int tests = fallback.isPresent() ? cases.size() : cases.size() - 1;
+			Label fallbackLabel = fallback.isPresent() ? new Label() : null;
+			Label[] caseLabels = new Label[cases.size()];
+			for(int i = 0; i < caseLabels.length; i++) {
+				caseLabels[i] = new Label();
+			}
+			if(tests >= 2) {
+				genTagSwitch(target, cases, caseLabels, fallbackLabel);
+			}
+
+			cases.forEachIndexed((i, ctorCase) -> {
+				JavaType subclass = javaClasses.get(ctorCase.ctor());
+				mv.visitLabel(caseLabels[i]);
+				if(tests < 2 && i < tests) {
+					loadLocal(target.slot(), target.type());
+					mv.visitTypeInsn(Opcodes.INSTANCEOF, subclass.toClassName());
+					mv.visitJumpInsn(Opcodes.IFEQ, i + 1 < caseLabels.length ? caseLabels[i + 1] : fallbackLabel);
+				}
+
+				Map<Occurrence, StoredOccurrence> caseStored = new HashMap<>(stored);
+				if(!ctors.get(ctorCase.ctor()).args().isEmpty() && target.type().castRequired(subclass)) {
+					int slot = locals.size();
+					locals.add(LOCAL_DUMMY_ID);
+					loadLocal(target.slot(), target.type());
+					checkcast(subclass);
+					storeLocal(slot, subclass);
+					caseStored.put(occurrence, new StoredOccurrence(slot, subclass));
+				}
+				genDecisionTree(ctorCase.tree(), caseStored, bodies, reached);
+			});
+			fallback.ifPresent(fallbackTree -> {
+				mv.visitLabel(fallbackLabel);
+				genDecisionTree(fallbackTree, new HashMap<>(stored), bodies, reached);
+			});
+		}
+		case DecisionTree.Fail() -> {
+			mv.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalStateException");
+			mv.visitInsn(Opcodes.DUP);
+			mv.visitLdcInsn("no case matched");
+			mv.visitMethodInsn(
+					Opcodes.INVOKESPECIAL,
+					"java/lang/IllegalStateException",
+					"<init>",
+					"(Ljava/lang/String;)V",
+					false);
+			mv.visitInsn(Opcodes.ATHROW);
+		}
+		}
+	}
+
+	/**
+	 * 部分項のコンストラクタの番号でtableswitchする．
+	 * casesに現れないコンストラクタはfallbackへ，fallbackがなければ最後のcaseへ飛ばす．
+	 */
+	private void genTagSwitch(
+			StoredOccurrence target,
+			Seq<DecisionTree.Case> cases,
+			Label[] caseLabels,
+			Label fallbackLabel) {
+		Seq<Id> allCtors = siblingCtors(cases.head().ctor());
+		JavaType.Variant someVariant = (JavaType.Variant) javaClasses.get(cases.head().ctor());
+		JavaType union = new JavaType.Simple(someVariant.union());
+		Label defaultLabel = fallbackLabel != null ? fallbackLabel : caseLabels[caseLabels.length - 1];
+		Label[] tagLabels = new Label[allCtors.size()];
+		allCtors.forEachIndexed((tag, ctorId) -> {
+			tagLabels[tag] = defaultLabel;
+			cases.forEachIndexed((i, ctorCase) -> {
+				if(ctorCase.ctor().equals(ctorId)) {
+					tagLabels[tag] = caseLabels[i];
+				}
+			});
+		});
+
+		loadLocal(target.slot(), target.type());
+		checkcastIfNeed(target.type(), union);
+		mv.visitMethodInsn(
+				Opcodes.INVOKEINTERFACE,
+				union.toClassName(),
+				CustomType.TAG,
+				CustomType.TAG_DESC,
+				true);
+		mv.visitTableSwitchInsn(0, tagLabels.length - 1, defaultLabel, tagLabels);
+	}
+
+	/**
+	 * 部分項をstackに載せる．
+	 * @return 載せた値の型
+	 */
+	private JavaType loadOccurrence(Occurrence occurrence, Map<Occurrence, StoredOccurrence> stored) {
+		StoredOccurrence target = storeOccurrence(occurrence, stored);
+		loadLocal(target.slot(), target.type());
+		return target.type();
+	}
+
+	/**
+	 * 部分項をまだ取り出していなければ取り出してローカル変数に格納する．
+	 * 親の部分項は既にマッチが確定している．
+	 */
+	private StoredOccurrence storeOccurrence(Occurrence occurrence, Map<Occurrence, StoredOccurrence> stored) {
+		StoredOccurrence found = stored.get(occurrence);
+		if(found != null) {
+			return found;
+		}
+
+		JavaType type = switch(occurrence) {
+		case Occurrence.Scrutinee() -> neverHappen("scrutinee must be stored");
+		case Occurrence.CtorField(Occurrence parent, Id ctor, int index) -> {
+			JavaType subclass = javaClasses.get(ctor);
+			checkcastIfNeed(loadOccurrence(parent, stored), subclass);
+			JavaType componentTy = toUnboxedJavaType(ctors.get(ctor).args().at(index));
+			mv.visitFieldInsn(
+					Opcodes.GETFIELD,
+					subclass.toClassName(),
+					CustomType.componentName(index),
+					componentTy.toDesc());
+			yield componentTy;
+		}
+		case Occurrence.RecordField(Occurrence parent, String name) -> {
+			checkcastIfNeed(loadOccurrence(parent, stored), JavaType.RECORD);
+			genRecordGet(name);
+			yield JavaType.OBJECT;
+		}
+		};
+
+		int slot = locals.size();
+		locals.add(LOCAL_DUMMY_ID);
+		storeLocal(slot, type);
+		StoredOccurrence result = new StoredOccurrence(slot, type);
+		stored.put(occurrence, result);
+		return result;
+	}
+
+	/**
+	 * コンストラクタと同じ型の全てのコンストラクタを宣言順に返す
+	 */
+	private Seq<Id> siblingCtors(Id ctorId) {
+		return module.types()
+				.findFirst(decl -> decl.ctors().anyMatch(ctor -> ctor.id().equals(ctorId)))
+				.map(decl -> decl.ctors().map(CcCtor::id))
+				.orElseThrow(() -> new IllegalArgumentException("unknown ctor: " + ctorId));
+	}
+
+	/**
+	 * stackトップにあるunboxedなcomponentをパターンに従って格納する．
+	 * I32やBoolのcomponentに対するパターンは変数かワイルドカードに限られ，必ずマッチする．
 	 * @param pat
-	 * @param declTy
-	 * @param next 次のラベル
+	 * @param componentTy componentの型
 	 */
-	private void checkMatchAndStoreLocals(IcPattern pat, Type declTy, Label next) {
+	private void storeUnboxedComponent(IcPattern pat, JavaType.Primitive componentTy) {
 		switch(pat) {
 		case IcPattern.Wildcard(Location _) -> {
 			mv.visitInsn(Opcodes.POP);
 		}
 		case IcPattern.Var(Id id, Location _) -> {
-			Type expTy = types.get(id);
-			checkcastIfNeed(JavaType.OBJECT, toJavaType(expTy));
-			storeLocal(locals.size(), expTy);
+			storeLocal(locals.size(), componentTy);
 			locals.add(id);
+			unboxedLocals.add(id);
 		}
-		case IcPattern.Dector(IcExp.IcVarCtor ctor, Seq<IcPattern.Arg> args, Location _) -> {
-			CcCtor ctorDecl = ctors.get(ctor.id());
-			String subClassName = javaClasses.get(ctor.id()).toClassName();
-			if(next != null) {
-				mv.visitInsn(Opcodes.DUP);
-				mv.visitTypeInsn(Opcodes.INSTANCEOF, subClassName);
-				Label matched = new Label();
-				mv.visitJumpInsn(Opcodes.IFNE, matched);
-				mv.visitInsn(Opcodes.POP);
-				mv.visitJumpInsn(Opcodes.GOTO, next);
-				mv.visitLabel(matched);
-			}
-			mv.visitTypeInsn(Opcodes.CHECKCAST, subClassName);
-			int ctorLocal = locals.size();
-			locals.add(LOCAL_DUMMY_ID);
-			mv.visitVarInsn(Opcodes.ASTORE, ctorLocal);
-			for(int i = 0; i < args.size(); i++) {
-				mv.visitVarInsn(Opcodes.ALOAD, ctorLocal);
-				mv.visitFieldInsn(
-						Opcodes.GETFIELD,
-						subClassName,
-						"val"+i,
-						toDesc(ctorDecl.args().at(i)));
-				checkMatchAndStoreLocals(args.at(i).pattern(), ctorDecl.args().at(i), next);
-			}
-		}
-		case IcPattern.Record(Seq<IcPattern.RecordField> fields, Location _) -> {
-			mv.visitTypeInsn(Opcodes.CHECKCAST, JavaType.RECORD.toClassName());
-			int recordLocal = locals.size();
-			locals.add(LOCAL_DUMMY_ID);
-			mv.visitVarInsn(Opcodes.ASTORE, recordLocal);
-			for(IcPattern.RecordField field : fields) {
-				mv.visitVarInsn(Opcodes.ALOAD, recordLocal);
-				mv.visitLdcInsn(field.name());
-				mv.visitMethodInsn(
-						Opcodes.INVOKEINTERFACE,
-						JavaType.RECORD.toClassName(),
-						"get",
-						"(Ljava/lang/String;)Ljava/lang/Object;",
-						true);
-				checkMatchAndStoreLocals(field.pattern(), null, next);
-			}
+		default -> neverHappen("refutable pattern for " + componentTy + ": " + pat);
 		}
-		};
 	}
 
 	/**
@@ -643,13 +1179,16 @@ public final class BytecodeGenerator {
 			mv.visitTypeInsn(Opcodes.NEW, subclassName);
 			mv.visitInsn(Opcodes.DUP);
 
-			ctor.args().forEachIndexed((i, ty) -> loadLocal(i, ty));
+			ctor.args().forEachIndexed((i, ty) -> {
+				mv.visitVarInsn(Opcodes.ALOAD, i);
+				coerce(toJavaType(ty), toUnboxedJavaType(ty));
+			});
 
 			mv.visitMethodInsn(
 					Opcodes.INVOKESPECIAL,
 					subclassName,
 					"<init>",
-					toMethodDesc(ctor.args(), Type.UNIT),
+					toMethodDesc(ctor.args(), Type.UNIT, this::toUnboxedJavaType),
 					false);
 
 			mv.visitInsn(Opcodes.ARETURN);
@@ -686,10 +1225,11 @@ public final class BytecodeGenerator {
 	}
 
 	/**
-	 * カリー化した関数オブジェクトを呼び出す
+	 * 先頭の引数を部分適用した関数値を作る．部分適用する引数はstackに載せておく．
 	 * @param originalId カリー化する前のtoplevelのId
+	 * @param applied 部分適用する引数の個数
 	 */
-	private void loadCurried(Id originalId) {
+	private void loadCurried(Id originalId, int applied) {
 		if(!toplevelDescs.containsKey(originalId)) {
 			throw new Error("no method exists: "+originalId);
 		}
@@ -697,76 +1237,81 @@ public final class BytecodeGenerator {
 		int arity = ctors.containsKey(originalId)
 				? ctors.get(originalId).args().size()
 				: toplevelDecls.get(originalId).arity();
-
-		Seq<Type> implTy = types.get(originalId).flatten();
-
-		Id nextId = originalId;
-		for (int i = arity - 1; i >= 0; i--) {
-			Seq<Type> args = implTy.slice(0, i);
-			Seq<Type> ret = implTy.slice(i, implTy.size());
-			Id lambdaId = Id.intern(originalId, "$" + i);
-			genCurryingStep(lambdaId, args, nextId, Type.arrow(ret));
-			nextId = lambdaId;
-		}
+		Id stepId = applied == arity ? originalId : curryingStep(originalId, applied, arity);
 
 		mv.visitMethodInsn(
 				Opcodes.INVOKESTATIC,
 				module.name(),
-				javaMethodName(nextId),
-				"()" + JavaType.FUNCTION.toDesc(),
+				javaMethodName(stepId),
+				toplevelDescs.get(stepId),
 				false
 		);
 	}
 
 	/**
-	 * カリー化用のメソッドを作成予約する
+	 * 先頭のapplied個の引数を受け取り，残りの引数を待つ関数値を返すメソッドを作成予約する．
 	 *
-	 * @param name 作成するメソッドの名前
-	 * @param argTys factoryTypeの引数部分（キャプチャ変数）
-	 * @param target 呼び出すメソッド
-	 * @param retTy 関数オブジェクトの型
+	 * 関数値は残りの引数の個数に応じて{@code ZlkFunction}〜{@code ZlkFunction4}を実装する．
+	 * 残りがMAX_CLOSURE_ARITYより多ければ，MAX_CLOSURE_ARITY個を受け取って次の段階の関数値を返す．
+	 *
+	 * @param originalId カリー化する前のtoplevelのId
+	 * @param applied 部分適用済みの引数の個数
+	 * @param arity originalIdの引数の個数
+	 * @return 作成するメソッドのId
 	 */
-	private void genCurryingStep(Id name, Seq<Type> argTys, Id target, Type.Arrow retTy) {
+	private Id curryingStep(Id originalId, int applied, int arity) {
+		Id name = Id.intern(originalId, "$" + applied);
 		// 作成済みであれば何もしない
 		if(toplevelDescs.containsKey(name)) {
-			return;
+			return name;
 		}
 
-		String desc = toMethodDesc(argTys, retTy);
-		String sign = toSignature(argTys, retTy);
+		Type implTy = types.get(originalId);
+		Seq<Type> capturedTys = implTy.flatten().take(applied);
+		int closureArity = Math.min(arity - applied, MAX_CLOSURE_ARITY);
+		Seq<Type> paramTys = implTy.dropArgs(applied).flatten().take(closureArity);
+		Type retTy = implTy.dropArgs(applied + closureArity);
+		Id target = arity - applied == closureArity
+				? originalId
+				: curryingStep(originalId, applied + closureArity, arity);
+
+		String desc = toMethodDesc(capturedTys, implTy.dropArgs(applied));
+		String factoryDesc = desc.substring(0, desc.lastIndexOf(')') + 1) + closureInterfaceDesc(closureArity);
 		toplevelDescs.put(name, desc);
 		pendings.push(() -> {
 			mv = cw.visitMethod(
 					Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC + Opcodes.ACC_SYNTHETIC,
 					javaMethodName(name),
 					desc,
-					sign,
+					null,
 					null);
 
 			mv.visitCode();
 
-			for (int i = 0; i < argTys.size(); i++) {
+			for (int i = 0; i < applied; i++) {
 				mv.visitIntInsn(Opcodes.ALOAD, i);
 			}
 
 			mv.visitInvokeDynamicInsn(
-					"apply",
-					desc,
+					applyName(closureArity),
+					factoryDesc,
 					LAMBDA_METAFACTORY,
-					toMethodType("("+JavaType.OBJECT.toDesc()+")"+JavaType.OBJECT.toDesc()),
+					toMethodType(
+							"(" + JavaType.OBJECT.toDesc().repeat(closureArity) + ")" + JavaType.OBJECT.toDesc()),
 					new Handle(
 							Opcodes.H_INVOKESTATIC,
 							module.name(),
 							javaMethodName(target),
 							toplevelDescs.get(target),
 							false),
-					toMethodType(toMethodDesc(Seq.of(retTy.arg()), retTy.ret())));
+					toMethodType(toMethodDesc(paramTys, retTy)));
 
 			mv.visitInsn(Opcodes.ARETURN);
 
 			mv.visitMaxs(-1, -1); // compute all frames and local automatically
 			mv.visitEnd();
 		});
+		return name;
 	}
 
 	private void loadCnst(ConstValue cnst) {
@@ -777,7 +1322,6 @@ public final class BytecodeGenerator {
 			} else {
 				mv.visitInsn(Opcodes.ICONST_0);
 			}
-			Primitive.BOOL.genBoxing(mv);
 		}
 		case ConstValue.I32(int value) -> {
 			switch(value) {
@@ -789,37 +1333,102 @@ public final class BytecodeGenerator {
 			case 5 -> mv.visitInsn(Opcodes.ICONST_5);
 			default -> 	mv.visitLdcInsn(value);
 			}
-			Primitive.INT.genBoxing(mv);
 		}
 		}
 	}
 
-	private void loadLocal(int idx, Type ty) {
-		assert ty != Type.UNIT;
-		mv.visitVarInsn(Opcodes.ALOAD, idx);
+	private void loadLocal(int idx, JavaType ty) {
+		assert ty != JavaType.VOID;
+		mv.visitVarInsn(ty instanceof JavaType.Primitive ? Opcodes.ILOAD : Opcodes.ALOAD, idx);
 	}
 
-	private void storeLocal(int idx, Type ty) {
-		assert ty != Type.UNIT;
-		mv.visitVarInsn(Opcodes.ASTORE, idx);
+	private void storeLocal(int idx, JavaType ty) {
+		assert ty != JavaType.VOID;
+		mv.visitVarInsn(ty instanceof JavaType.Primitive ? Opcodes.ISTORE : Opcodes.ASTORE, idx);
 	}
 
-	private void genReturn(Type type) {
-		if(type == Type.UNIT) {
+	private void genReturn(JavaType type) {
+		if(type == JavaType.VOID) {
 			mv.visitInsn(Opcodes.RETURN);
+		} else if(type instanceof JavaType.Primitive) {
+			mv.visitInsn(Opcodes.IRETURN);
+		} else {
+			mv.visitInsn(Opcodes.ARETURN);
 		}
-		mv.visitInsn(Opcodes.ARETURN);
 	}
 
-	private void invokeApply() {
+	/**
+	 * スタック上のレコードからフィールドを取り出す
+	 */
+	private void genRecordGet(String field) {
+		mv.visitInvokeDynamicInsn(
+				"recordGet",
+				"(Lzlk/runtime/ZlkRecord;)Ljava/lang/Object;",
+				RECORD_GET_BOOTSTRAP,
+				field);
+	}
+
+	/**
+	 * レコードのフィールドの値を記述順に計算し，フィールド名の正規順（辞書順）にスタックに積む
+	 * @return bootstrap methodに渡すフィールド名の符号化
+	 */
+	private String genCanonicalFieldValues(Seq<CcExp.CcRecordField> fields) {
+		// 計算順序は記述順に（この制限は外してもよい）
+		record StoredField(CcExp.CcRecordField field, int localIndex) {}
+		SeqBuffer<StoredField> canonicalFields = new SeqBuffer<>(fields.size());
+		for(CcExp.CcRecordField field : fields) {
+			compile(field.value(), JavaType.OBJECT);
+			int localIndex = locals.size();
+			locals.add(LOCAL_DUMMY_ID);
+			mv.visitVarInsn(Opcodes.ASTORE, localIndex);
+			canonicalFields.add(new StoredField(field, localIndex));
+		}
+		Seq<StoredField> canonicalFieldsSorted = canonicalFields.toSeq().sorted(
+				Comparator.comparing(stored -> stored.field().name()));
+		canonicalFieldsSorted.forEach(stored ->
+			mv.visitVarInsn(Opcodes.ALOAD, stored.localIndex()));
+
+		StringBuilder encodedNames = new StringBuilder("v1;");
+		canonicalFieldsSorted.forEach(stored -> encodedNames
+				.append(stored.field().name().length())
+				.append('#')
+				.append(stored.field().name()));
+		return encodedNames.toString();
+	}
+
+	private void loadSingleton(JavaType subclass) {
+		mv.visitFieldInsn(
+				Opcodes.GETSTATIC,
+				subclass.toClassName(),
+				CustomType.SINGLETON,
+				subclass.toDesc());
+	}
+
+	/**
+	 * stackに載せた関数値にargCount個の引数をまとめて適用する
+	 */
+	private void invokeApply(int argCount) {
 		mv.visitMethodInsn(
 				Opcodes.INVOKEINTERFACE,
 				JavaType.FUNCTION.toClassName(),
-				"apply",
-				"(Ljava/lang/Object;)Ljava/lang/Object;",
+				applyName(argCount),
+				"(" + JavaType.OBJECT.toDesc().repeat(argCount) + ")" + JavaType.OBJECT.toDesc(),
 				true);
 	}
 
+	private static String applyName(int argCount) {
+		return argCount == 1 ? "apply" : "apply" + argCount;
+	}
+
+	/**
+	 * argCount個の引数を受け取る関数値のインタフェース
+	 */
+	private static String closureInterfaceDesc(int argCount) {
+		return argCount == 1
+				? JavaType.FUNCTION.toDesc()
+				: "Lzlk/runtime/ZlkFunction" + argCount + ";";
+	}
+
 	private String getDescription(CcFunDecl decl) {
 		Type funTy = types.get(decl.id());
 		int arity = decl.arity();
@@ -861,6 +1470,30 @@ public final class BytecodeGenerator {
 		};
 	}
 
+	/**
+	 * 指定した型に対応するJavaType表現を返す．
+	 * I32とBoolはunboxedなintとbooleanとする．
+	 * @param type
+	 * @return JavaType
+	 */
+	private JavaType toUnboxedJavaType(Type type) {
+		if(type.equals(Type.I32)) {
+			return JavaType.INT;
+		}
+		if(type.equals(Type.BOOL)) {
+			return JavaType.BOOL;
+		}
+		return toJavaType(type);
+	}
+
+	/**
+	 * コンストラクタのcomponentのディスクリプタを返す．
+	 * I32とBoolはunboxedなintとbooleanとして保持する．
+	 */
+	private String toComponentDesc(Type ty) {
+		return toUnboxedJavaType(ty).toDesc();
+	}
+
 	private static String toMethodDesc(Seq<Type> argTys, Type retTy, Function<Type, JavaType> mapper) {
 		StringBuilder sb = new StringBuilder();
 		sb.append("(");
@@ -872,21 +1505,6 @@ public final class BytecodeGenerator {
 	private String toMethodDesc(Seq<Type> argTys, Type retTy) {
 		return toMethodDesc(argTys, retTy, this::toJavaType);
 	}
-	private String toSignature(Type type) {
-		if(type instanceof Type.Arrow(Type arg, Type ret)) {
-			return "Ljava/util/function/Function<"+toSignature(arg)+toSignature(ret)+">;";
-		}
-		return toJavaType(type).toDesc();
-	}
-	private String toSignature(Seq<Type> args, Type ret) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("(");
-		args.forEach(ty -> sb.append(toSignature(ty)));
-		sb.append(")");
-		sb.append(toSignature(ret));
-		return sb.toString();
-	}
-
 	private static org.objectweb.asm.Type toMethodType(String descriptor) {
 		return org.objectweb.asm.Type.getMethodType(descriptor);
 	}
@@ -19,6 +19,9 @@ import zlk.common.id.IdMap;
 final class CustomType {
 	private static final String RUNTIME_ZLK_VALUE = "zlk/runtime/ZlkValue";
 	private static final String RUNTIME_ZLK_CUSTOM = "zlk/runtime/ZlkCustom";
+	static final String TAG = "tag";
+	static final String TAG_DESC = "()I";
+	static final String SINGLETON = "INSTANCE";
 	private static final String APPEND_STRING_TO = "appendStringTo";
 	private static final String APPEND_STRING_AS_ARG_TO = "appendStringAsArgTo";
 	private static final String APPEND_STRING_DESC = "(Ljava/lang/StringBuilder;)V";
@@ -70,8 +73,8 @@ final class CustomType {
 		ClassWriter cw = genInterfaceClass(opcodeVersion);
 		fileWriter.accept(interfaceClass.toClassName(), cw.toByteArray());
 
-		decl.ctors().forEach(ctor -> {
-			ClassWriter variantClass = genVariantClass(opcodeVersion, ctor, toDesc);
+		decl.ctors().forEachIndexed((tag, ctor) -> {
+			ClassWriter variantClass = genVariantClass(opcodeVersion, ctor, tag, toDesc);
 			fileWriter.accept(variantClasses.get(ctor.id()).toClassName(), variantClass.toByteArray());
 		});
 	}
@@ -85,7 +88,9 @@ final class CustomType {
 	 * type宣言に対応するsealed interfaceを生成する．
 	 *
 	 * <pre>{@code
-	 * sealed interface T extends zlk.runtime.ZlkCustom permits C1, C2 {}
+	 * sealed interface T extends zlk.runtime.ZlkCustom permits C1, C2 {
+	 *     int tag();  // コンストラクタの宣言順の番号
+	 * }
 	 * }</pre>
 	 */
 	private ClassWriter genInterfaceClass(int opcodeVersion) {
@@ -100,6 +105,12 @@ final class CustomType {
 		cw.visitSource(origin, null);
 		decl.ctors().forEach(ctor ->
 				cw.visitPermittedSubclass(variantClasses.get(ctor.id()).toClassName()));
+		cw.visitMethod(
+				Opcodes.ACC_PUBLIC + Opcodes.ACC_ABSTRACT,
+				TAG,
+				TAG_DESC,
+				null,
+				null).visitEnd();
 		cw.visitNestHost(nestHost);
 		cw.visitEnd();
 		return cw;
@@ -113,11 +124,14 @@ final class CustomType {
 	 * }</pre>
 	 *
 	 * 実際のclass fileには，component，field，accessor，canonical constructor，
-	 * 文字列表現用メソッド，equals，hashCodeも生成する．
+	 * tag，文字列表現用メソッド，equals，hashCodeも生成する．
+	 * 型がI32やBoolであるcomponentはintやbooleanとして保持する．
+	 * componentを持たないCtorには唯一のインスタンスを保持するstatic fieldも生成する．
 	 */
 	private ClassWriter genVariantClass(
 			int opcodeVersion,
 			CcCtor ctor,
+			int tag,
 			Function<Type, String> toDesc) {
 		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
 		String owner = variantClasses.get(ctor.id()).toClassName();
@@ -144,6 +158,10 @@ final class CustomType {
 		}
 
 		genCanonicalConstructor(cw, owner, ctor, toDesc);
+		if(ctor.args().isEmpty()) {
+			genSingleton(cw, owner);
+		}
+		genTag(cw, tag);
 		genToString(cw, owner);
 		genAppendStringTo(cw, owner, ctor, toDesc);
 		genAppendStringAsArgTo(cw, owner, ctor);
@@ -186,7 +204,7 @@ final class CustomType {
 		for(int i = 0; i < ctor.args().size(); i++) {
 			String componentDesc = toDesc.apply(ctor.args().at(i));
 			mv.visitVarInsn(Opcodes.ALOAD, 0);
-			mv.visitVarInsn(Opcodes.ALOAD, i + 1);
+			mv.visitVarInsn(opcodeOf(componentDesc, Opcodes.ILOAD), i + 1);
 			mv.visitFieldInsn(
 					Opcodes.PUTFIELD,
 					owner,
@@ -199,6 +217,34 @@ final class CustomType {
 		mv.visitEnd();
 	}
 
+	/**
+	 * componentを持たないrecordの唯一のインスタンスを生成する．
+	 * 生成コードはコンストラクタを呼ばずにこのインスタンスを参照する．
+	 *
+	 * <pre>{@code
+	 * public static final C INSTANCE = new C();
+	 * }</pre>
+	 */
+	private void genSingleton(ClassWriter cw, String owner) {
+		String desc = "L" + owner + ";";
+		cw.visitField(
+				Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC + Opcodes.ACC_FINAL,
+				SINGLETON,
+				desc,
+				null,
+				null).visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+		mv.visitCode();
+		mv.visitTypeInsn(Opcodes.NEW, owner);
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, owner, "<init>", "()V", false);
+		mv.visitFieldInsn(Opcodes.PUTSTATIC, owner, SINGLETON, desc);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
 	/**
 	 * record componentのaccessorを生成する．
 	 *
@@ -222,7 +268,31 @@ final class CustomType {
 		mv.visitCode();
 		mv.visitVarInsn(Opcodes.ALOAD, 0);
 		mv.visitFieldInsn(Opcodes.GETFIELD, owner, componentName, componentDesc);
-		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitInsn(opcodeOf(componentDesc, Opcodes.IRETURN));
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * コンストラクタの宣言順の番号を返すtagを生成する．
+	 * case式はこの値でtableswitchする．
+	 *
+	 * <pre>{@code
+	 * public final int tag() {
+	 *     return 1;
+	 * }
+	 * }</pre>
+	 */
+	private void genTag(ClassWriter cw, int tag) {
+		MethodVisitor mv = cw.visitMethod(
+				Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL,
+				TAG,
+				TAG_DESC,
+				null,
+				null);
+		mv.visitCode();
+		mv.visitLdcInsn(tag);
+		mv.visitInsn(Opcodes.IRETURN);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
 	}
@@ -302,13 +372,15 @@ final class CustomType {
 
 		for(int i = 0; i < ctor.args().size(); i++) {
 			appendConstant(mv, " ");
+			String componentDesc = toDesc.apply(ctor.args().at(i));
 			mv.visitVarInsn(Opcodes.ALOAD, 1);
 			mv.visitVarInsn(Opcodes.ALOAD, 0);
 			mv.visitFieldInsn(
 					Opcodes.GETFIELD,
 					owner,
 					componentName(i),
-					toDesc.apply(ctor.args().at(i)));
+					componentDesc);
+			Primitive.tryFromDesc(componentDesc).ifPresent(primitive -> primitive.genBoxing(mv));
 			mv.visitMethodInsn(
 					Opcodes.INVOKESTATIC,
 					RUNTIME_ZLK_VALUE,
@@ -456,6 +528,15 @@ final class CustomType {
 		return sb.append(")V").toString();
 	}
 
+	/**
+	 * componentの型に合わせたload，store，return命令を返す．
+	 * @param componentDesc componentのディスクリプタ
+	 * @param intOpcode int用の命令
+	 */
+	private static int opcodeOf(String componentDesc, int intOpcode) {
+		return org.objectweb.asm.Type.getType(componentDesc).getOpcode(intOpcode);
+	}
+
 	static String componentName(int index) {
 		return "val" + index;
 	}
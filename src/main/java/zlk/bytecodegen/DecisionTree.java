@@ -0,0 +1,68 @@
+package zlk.bytecodegen;
+
+import java.util.Optional;
+
+import zlk.bytecodegen.DecisionTree.Fail;
+import zlk.bytecodegen.DecisionTree.Leaf;
+import zlk.bytecodegen.DecisionTree.Switch;
+import zlk.common.id.Id;
+import zlk.util.collection.Seq;
+
+/**
+ * case式のパターンマッチを表す決定木．{@link MatchCompiler}が作る．
+ */
+sealed interface DecisionTree
+permits Leaf, Switch, Fail {
+
+	/**
+	 * 分岐が確定した．
+	 * @param branch case式の何番目の分岐か
+	 * @param bindings 分岐の本体に入る前に束縛する変数
+	 */
+	record Leaf(int branch, Seq<Binding> bindings) implements DecisionTree {}
+
+	/**
+	 * 部分項のコンストラクタで分岐する．
+	 * @param occurrence 検査する部分項
+	 * @param cases コンストラクタごとの分岐
+	 * @param fallback どのcaseにも当てはまらない場合．casesが全コンストラクタを覆う場合は空
+	 */
+	record Switch(Occurrence occurrence, Seq<Case> cases, Optional<DecisionTree> fallback) implements DecisionTree {}
+
+	/**
+	 * マッチする分岐がない．
+	 */
+	record Fail() implements DecisionTree {}
+
+	/**
+	 * @param ctor 部分項のコンストラクタ
+	 * @param tree 部分項がctorであった場合の決定木
+	 */
+	record Case(Id ctor, DecisionTree tree) {}
+
+	/**
+	 * @param var パターン中の変数
+	 * @param occurrence 変数に束縛する部分項
+	 */
+	record Binding(Id var, Occurrence occurrence) {}
+
+	/**
+	 * case式の対象の部分項の位置
+	 */
+	sealed interface Occurrence {
+		/**
+		 * case式の対象そのもの
+		 */
+		record Scrutinee() implements Occurrence {}
+
+		/**
+		 * コンストラクタの第index引数
+		 */
+		record CtorField(Occurrence parent, Id ctor, int index) implements Occurrence {}
+
+		/**
+		 * recordのフィールド
+		 */
+		record RecordField(Occurrence parent, String name) implements Occurrence {}
+	}
+}
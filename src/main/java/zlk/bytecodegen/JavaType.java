@@ -20,6 +20,14 @@ permits JavaType.Primitive, JavaType.Simple, JavaType.Variant {
 	 * コンストラクタの戻り値に出現するVOID
 	 */
 	public static final Primitive VOID = Primitive.VOID;
+	/**
+	 * unboxedなI32
+	 */
+	public static final Primitive INT = Primitive.INT;
+	/**
+	 * unboxedなBool
+	 */
+	public static final Primitive BOOL = Primitive.BOOL;
 	/**
 	 * 型消去によりなんだかわからなくなった型 `==`で比較可能
 	 */
@@ -27,12 +35,14 @@ permits JavaType.Primitive, JavaType.Simple, JavaType.Variant {
 	/**
 	 * 型消去された何かの関数 `==`で比較可能
 	 */
-	public static final Simple FUNCTION = new Simple("java/util/function/Function", true);
+	public static final Simple FUNCTION = new Simple("zlk/runtime/ZlkFunction", true);
 	/** 全ZLK recordの公開JVM型． */
 	public static final Simple RECORD = new Simple("zlk/runtime/ZlkRecord");
 
 	enum Primitive implements JavaType {
-		VOID("V");
+		VOID("V"),
+		INT("I"),
+		BOOL("Z");
 
 		private final String desc;
 		private Primitive(String desc) {
@@ -66,7 +76,7 @@ permits JavaType.Primitive, JavaType.Simple, JavaType.Variant {
 		private static String backdoor(String className, boolean backdoor) {
 			if(!backdoor && (
 					className.equals("java/lang/Object") ||
-					className.equals("java/util/function/Function"))
+					className.equals("zlk/runtime/ZlkFunction"))
 			) {
 				throw new IllegalArgumentException(className);
 			}
@@ -106,7 +116,7 @@ permits JavaType.Primitive, JavaType.Simple, JavaType.Variant {
 		}
 
 		return switch(expected) {
-		case Primitive.VOID -> cannotCast(this, expected);
+		case Primitive _ -> cannotCast(this, expected);  // unboxedな値との変換はcastでは表せない
 
 		case Simple(String to, String _) ->
 			switch(this) {
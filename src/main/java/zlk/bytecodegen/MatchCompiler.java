@@ -0,0 +1,186 @@
+package zlk.bytecodegen;
+
+import static zlk.util.ErrorUtils.neverHappen;
+
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.function.Function;
+
+import zlk.bytecodegen.DecisionTree.Binding;
+import zlk.bytecodegen.DecisionTree.Case;
+import zlk.bytecodegen.DecisionTree.Occurrence;
+import zlk.clcalc.CcCaseBranch;
+import zlk.common.Location;
+import zlk.common.id.Id;
+import zlk.idcalc.IcExp;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+// L. Maranget, "Compiling Pattern Matching to Good Decision Trees", ML Workshop 2008
+
+/**
+ * case式の分岐の並びを，各部分項を高々1度だけ検査する決定木に変換する．
+ *
+ * 行列の特殊化は{@link zlk.patterncheck.PatternChecker}と同じ考え方による．
+ * 行は分岐，列は検査前の部分項に対応し，最初の行で変数やワイルドカードでない最も左の列で分岐する．
+ */
+final class MatchCompiler {
+	private final Function<Id, Seq<Id>> siblingCtors;
+
+	/**
+	 * @param patterns 各列のパターン
+	 * @param bindings 既に取り除いた列で束縛された変数
+	 * @param branch 対応するcase式の分岐
+	 */
+	private record Row(Seq<IcPattern> patterns, Seq<Binding> bindings, int branch) {}
+
+	private MatchCompiler(Function<Id, Seq<Id>> siblingCtors) {
+		this.siblingCtors = siblingCtors;
+	}
+
+	/**
+	 * @param branches case式の分岐
+	 * @param siblingCtors コンストラクタから，同じ型の全てのコンストラクタを宣言順に求める関数
+	 * @return 決定木
+	 */
+	static DecisionTree compile(Seq<CcCaseBranch> branches, Function<Id, Seq<Id>> siblingCtors) {
+		Seq<Row> rows = branches.mapIndexed((i, branch) -> new Row(Seq.of(branch.pattern()), Seq.of(), i));
+		return new MatchCompiler(siblingCtors).compile(rows, Seq.of(new Occurrence.Scrutinee()));
+	}
+
+	private DecisionTree compile(Seq<Row> rows, Seq<Occurrence> occurrences) {
+		if(rows.isEmpty()) {
+			return new DecisionTree.Fail();
+		}
+
+		Row first = rows.head();
+		int column = refutableColumn(first);
+		if(column == -1) {
+			SeqBuffer<Binding> bindings = new SeqBuffer<>();
+			bindings.addAll(first.bindings());
+			first.patterns().forEachIndexed((i, pat) -> {
+				if(pat instanceof IcPattern.Var var) {
+					bindings.add(new Binding(var.id(), occurrences.at(i)));
+				}
+			});
+			return new DecisionTree.Leaf(first.branch(), bindings.toSeq());
+		}
+
+		return switch(first.patterns().at(column)) {
+		case IcPattern.Record _ -> expandRecord(rows, occurrences, column);
+		case IcPattern.Dector _ -> switchOnCtor(rows, occurrences, column);
+		default -> neverHappen("irrefutable pattern is chosen");
+		};
+	}
+
+	private static int refutableColumn(Row row) {
+		for(int i = 0; i < row.patterns().size(); i++) {
+			if(row.patterns().at(i) instanceof IcPattern.Dector
+					|| row.patterns().at(i) instanceof IcPattern.Record) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * recordの列を，いずれかの行で言及されたフィールドごとの列に展開する．
+	 * recordは常にマッチするので分岐は作らない．
+	 */
+	private DecisionTree expandRecord(Seq<Row> rows, Seq<Occurrence> occurrences, int column) {
+		SeqBuffer<String> nameBuffer = new SeqBuffer<>();
+		rows.forEach(row -> {
+			if(row.patterns().at(column) instanceof IcPattern.Record(Seq<IcPattern.RecordField> fields, Location _)) {
+				fields.forEach(field -> nameBuffer.addIfNotContains(field.name()));
+			}
+		});
+		Seq<String> names = nameBuffer.toSeq().sorted(Comparator.naturalOrder());
+
+		Occurrence occurrence = occurrences.at(column);
+		Seq<Row> expanded = rows.map(row -> {
+			IcPattern pat = row.patterns().at(column);
+			Seq<IcPattern> fieldPatterns = switch(pat) {
+			case IcPattern.Record(Seq<IcPattern.RecordField> fields, Location loc) ->
+				names.map(name -> fields
+						.findFirst(field -> field.name().equals(name))
+						.map(IcPattern.RecordField::pattern)
+						.orElse(new IcPattern.Wildcard(loc)));
+			case IcPattern.Var _, IcPattern.Wildcard _ -> wildcards(names.size(), pat.loc());
+			case IcPattern.Dector _ -> neverHappen("constructor pattern against record", pat.loc());
+			};
+			return replaceColumn(row, column, occurrence, fieldPatterns);
+		});
+		return compile(expanded, replace(occurrences, column,
+				names.map(name -> new Occurrence.RecordField(occurrence, name))));
+	}
+
+	/**
+	 * 列に現れたコンストラクタごとに行列を特殊化して分岐する．
+	 * 現れなかったコンストラクタがあれば，変数やワイルドカードの行だけからなる行列をfallbackとする．
+	 */
+	private DecisionTree switchOnCtor(Seq<Row> rows, Seq<Occurrence> occurrences, int column) {
+		SeqBuffer<IcPattern.Dector> heads = new SeqBuffer<>();
+		rows.forEach(row -> {
+			if(row.patterns().at(column) instanceof IcPattern.Dector dector
+					&& heads.toSeq().allMatch(head -> !head.ctor().id().equals(dector.ctor().id()))) {
+				heads.add(dector);
+			}
+		});
+
+		Occurrence occurrence = occurrences.at(column);
+		Seq<Case> cases = heads.toSeq().map(head -> {
+			Id ctorId = head.ctor().id();
+			int arity = head.args().size();
+			Seq<Row> specialized = rows.filterMap(row -> {
+				IcPattern pat = row.patterns().at(column);
+				return switch(pat) {
+				case IcPattern.Dector(IcExp.IcVarCtor ctor, Seq<IcPattern.Arg> args, Location _) ->
+					ctor.id().equals(ctorId)
+							? Optional.of(replaceColumn(row, column, occurrence, args.map(IcPattern.Arg::pattern)))
+							: Optional.empty();
+				case IcPattern.Var _, IcPattern.Wildcard _ ->
+					Optional.of(replaceColumn(row, column, occurrence, wildcards(arity, pat.loc())));
+				case IcPattern.Record _ -> neverHappen("record pattern against constructor", pat.loc());
+				};
+			});
+			SeqBuffer<Occurrence> fields = new SeqBuffer<>(arity);
+			for(int i = 0; i < arity; i++) {
+				fields.add(new Occurrence.CtorField(occurrence, ctorId, i));
+			}
+			return new Case(ctorId, compile(specialized, replace(occurrences, column, fields.toSeq())));
+		});
+
+		if(siblingCtors.apply(heads.at(0).ctor().id()).size() == heads.size()) {
+			return new DecisionTree.Switch(occurrence, cases, Optional.empty());
+		}
+
+		Seq<Row> defaults = rows.filterMap(row -> switch(row.patterns().at(column)) {
+			case IcPattern.Var _, IcPattern.Wildcard _ ->
+				Optional.of(replaceColumn(row, column, occurrence, Seq.of()));
+			default -> Optional.empty();
+		});
+		return new DecisionTree.Switch(
+				occurrence,
+				cases,
+				Optional.of(compile(defaults, replace(occurrences, column, Seq.of()))));
+	}
+
+	/**
+	 * 行の列を置き換える．置き換えられる列が変数であれば束縛を記録する．
+	 */
+	private static Row replaceColumn(Row row, int column, Occurrence occurrence, Seq<IcPattern> inserted) {
+		Seq<Binding> bindings = row.patterns().at(column) instanceof IcPattern.Var var
+				? Seq.concat(row.bindings(), Seq.of(new Binding(var.id(), occurrence)))
+				: row.bindings();
+		return new Row(replace(row.patterns(), column, inserted), bindings, row.branch());
+	}
+
+	private static <E> Seq<E> replace(Seq<E> seq, int index, Seq<? extends E> inserted) {
+		return Seq.concat(seq.take(index), inserted, seq.drop(index + 1));
+	}
+
+	private static Seq<IcPattern> wildcards(int size, Location loc) {
+		return Seq.repeat(new IcPattern.Wildcard(loc), size);
+	}
+}
@@ -8,9 +8,11 @@ import org.objectweb.asm.Opcodes;
 import zlk.common.Type;
 
 public enum Primitive {
-	BOOL ("java/lang/Boolean", "booleanValue", "()Z", "(Z)Ljava/lang/Boolean;"),
-	INT  ("java/lang/Integer",     "intValue", "()I", "(I)Ljava/lang/Integer;");
+	BOOL ("java/lang/Boolean", "booleanValue", "()Z", "(Z)Ljava/lang/Boolean;", JavaType.BOOL),
+	INT  ("java/lang/Integer",     "intValue", "()I", "(I)Ljava/lang/Integer;", JavaType.INT);
 
+	public final JavaType.Primitive unboxedType;
+	public final JavaType.Simple boxedType;
 	public final String boxedClassName;
 	public final String boxedClassDesc;
 	public final String unboxMethodName;
@@ -21,7 +23,10 @@ public enum Primitive {
 			String boxedClassName,
 			String unboxMethodName,
 			String unboxMethodDesc,
-			String boxMethodDecs) {
+			String boxMethodDecs,
+			JavaType.Primitive unboxedType) {
+		this.unboxedType = unboxedType;
+		this.boxedType = new JavaType.Simple(boxedClassName);
 		this.boxedClassName = boxedClassName;
 		this.boxedClassDesc = "L"+boxedClassName+";";
 		this.unboxMethodName = unboxMethodName;
@@ -35,6 +40,29 @@ public enum Primitive {
 		throw new IllegalArgumentException("Unexpected value: " + ty);
 	}
 
+	static Primitive of(JavaType.Primitive unboxedType) {
+		for(Primitive primitive : values()) {
+			if(primitive.unboxedType == unboxedType) {
+				return primitive;
+			}
+		}
+		throw new IllegalArgumentException("Unexpected value: " + unboxedType);
+	}
+
+	/**
+	 * unboxedな値のディスクリプタに対応するものを返す．
+	 * @param desc ディスクリプタ
+	 * @return 参照型のディスクリプタであれば空
+	 */
+	static Optional<Primitive> tryFromDesc(String desc) {
+		for(Primitive primitive : values()) {
+			if(primitive.unboxedType.toDesc().equals(desc)) {
+				return Optional.of(primitive);
+			}
+		}
+		return Optional.empty();
+	}
+
 	public static Optional<Primitive> tryFrom(Type ty) {
 		if(ty.equals(Type.BOOL)) { return Optional.of(BOOL); }
 		if(ty.equals(Type.I32))  { return Optional.of(INT); }
@@ -0,0 +1,78 @@
+package zlk.bytecodegen;
+
+import zlk.clcalc.CcCaseBranch;
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCase;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcIf;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.util.StronglyConnectedComponents;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 末尾呼出しだけで互いに到達できるトップレベル関数の組を求める．
+ *
+ * 末尾位置で引数を揃えて呼び出すトップレベル関数への辺からなるグラフの
+ * 強連結成分のうち，2つ以上の関数を含むものを1つの組とする．
+ * 自己末尾呼出しだけの関数は組にせず，{@link BytecodeGenerator}が個別に処理する．
+ */
+final class TailCallGroups {
+	private final Seq<CcFunDecl> funcs;
+	private final IdMap<CcFunDecl> decls;
+	private final IdMap<Seq<Id>> tailCallees;
+
+	private TailCallGroups(CcModule module) {
+		this.funcs = module.funcs();
+		this.decls = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		this.tailCallees = module.funcs().fold(IdMap.folder(CcFunDecl::id, this::tailCallees));
+	}
+
+	/**
+	 * 末尾呼出しの組を宣言順に求める．
+	 * @param module 対象のモジュール
+	 * @return 2つ以上の関数からなる組．組の中は宣言順
+	 */
+	static Seq<Seq<CcFunDecl>> find(CcModule module) {
+		TailCallGroups finder = new TailCallGroups(module);
+		SeqBuffer<Seq<CcFunDecl>> groups = new SeqBuffer<>();
+		StronglyConnectedComponents.find(module.funcs().map(CcFunDecl::id), finder.tailCallees::get).forEach(component -> {
+			if(component.size() >= 2) {
+				groups.add(finder.funcs.filter(decl -> component.contains(decl.id())));
+			}
+		});
+		return groups.toSeq();
+	}
+
+	private Seq<Id> tailCallees(CcFunDecl decl) {
+		SeqBuffer<Id> acc = new SeqBuffer<>();
+		accTailCallees(decl.body(), acc);
+		return acc.toSeq();
+	}
+
+	private void accTailCallees(CcExp exp, SeqBuffer<Id> acc) {
+		switch(exp) {
+		case CcDirectApp(Id funId, Seq<CcExp> args, _) -> {
+			CcFunDecl callee = decls.getOrNull(funId);
+			if(callee != null && callee.arity() == args.size()) {
+				acc.addIfNotContains(funId);
+			}
+		}
+		case CcIf(_, CcExp thenExp, CcExp elseExp, _) -> {
+			accTailCallees(thenExp, acc);
+			accTailCallees(elseExp, acc);
+		}
+		case CcLet(_, _, CcExp body, _) -> {
+			accTailCallees(body, acc);
+		}
+		case CcCase(_, _, Seq<CcCaseBranch> branches, _) -> {
+			branches.forEach(branch -> accTailCallees(branch.body(), acc));
+		}
+		default -> {}
+		}
+	}
+}
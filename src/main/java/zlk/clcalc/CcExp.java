@@ -1,5 +1,8 @@
 package zlk.clcalc;
 
+import java.util.function.Consumer;
+import java.util.function.Function;
+
 import zlk.common.ConstValue;
 import zlk.common.Location;
 import zlk.common.LocationHolder;
@@ -72,6 +75,99 @@ public sealed interface CcExp extends PrettyPrintable, LocationHolder {
 			Seq<CcRecordField> fields,
 			Location loc) implements CcExp {}
 
+	/**
+	 * この式と全ての部分式を前順に訪れる．
+	 */
+	default void walk(Consumer<? super CcExp> action) {
+		action.accept(this);
+		switch (this) {
+		case CcCnst _, CcVar _ -> {}
+		case CcDirectApp(Id _, Seq<CcExp> args, Location _) ->
+			args.forEach(arg -> arg.walk(action));
+		case CcClosureApp(CcExp funExp, Seq<CcExp> args, Location _) -> {
+			funExp.walk(action);
+			args.forEach(arg -> arg.walk(action));
+		}
+		case CcMkCls(Id _, Seq<CcExp> caps, Location _) ->
+			caps.forEach(cap -> cap.walk(action));
+		case CcIf(CcExp cond, CcExp thenExp, CcExp elseExp, Location _) -> {
+			cond.walk(action);
+			thenExp.walk(action);
+			elseExp.walk(action);
+		}
+		case CcLet(Id _, CcExp boundExp, CcExp body, Location _) -> {
+			boundExp.walk(action);
+			body.walk(action);
+		}
+		case CcCase(CcExp target, Type _, Seq<CcCaseBranch> branches, Location _) -> {
+			target.walk(action);
+			branches.forEach(branch -> branch.body().walk(action));
+		}
+		case CcRecord(Seq<CcRecordField> fields, Location _) ->
+			fields.forEach(field -> field.value().walk(action));
+		case CcRecordAccess(CcExp target, String _, Location _) -> target.walk(action);
+		case CcRecordUpdate(CcExp target, Seq<CcRecordField> fields, Location _) -> {
+			target.walk(action);
+			fields.forEach(field -> field.value().walk(action));
+		}
+		}
+	}
+
+	/**
+	 * この式に変数idが現れるか．
+	 */
+	default boolean occurs(Id id) {
+		boolean[] found = {false};
+		walk(sub -> found[0] |= sub instanceof CcVar(Id var, Location _) && var.equals(id));
+		return found[0];
+	}
+
+	/**
+	 * この式の節点の数．
+	 */
+	default int size() {
+		int[] size = {0};
+		walk(_ -> size[0]++);
+		return size[0];
+	}
+
+	/**
+	 * 直下の部分式にfを適用した式を返す．関数や束縛される変数の{@code Id}は変えない．
+	 * 最適化など，式を再帰的に書き換える処理の共通部分．
+	 */
+	default CcExp mapChildren(Function<CcExp, CcExp> f) {
+		return switch (this) {
+		case CcCnst _, CcVar _ -> this;
+		case CcDirectApp(Id funId, Seq<CcExp> args, Location loc) ->
+			new CcDirectApp(funId, args.map(f), loc);
+		case CcClosureApp(CcExp funExp, Seq<CcExp> args, Location loc) ->
+			new CcClosureApp(f.apply(funExp), args.map(f), loc);
+		case CcMkCls(Id implId, Seq<CcExp> caps, Location loc) ->
+			new CcMkCls(implId, caps.map(f), loc);
+		case CcIf(CcExp cond, CcExp thenExp, CcExp elseExp, Location loc) ->
+			new CcIf(f.apply(cond), f.apply(thenExp), f.apply(elseExp), loc);
+		case CcLet(Id var, CcExp boundExp, CcExp body, Location loc) ->
+			new CcLet(var, f.apply(boundExp), f.apply(body), loc);
+		case CcCase(CcExp target, Type targetTy, Seq<CcCaseBranch> branches, Location loc) ->
+			new CcCase(
+					f.apply(target),
+					targetTy,
+					branches.map(branch -> new CcCaseBranch(branch.pattern(), f.apply(branch.body()), branch.loc())),
+					loc);
+		case CcRecord(Seq<CcRecordField> fields, Location loc) ->
+			new CcRecord(
+					fields.map(field -> new CcRecordField(field.name(), f.apply(field.value()), field.loc())),
+					loc);
+		case CcRecordAccess(CcExp target, String field, Location loc) ->
+			new CcRecordAccess(f.apply(target), field, loc);
+		case CcRecordUpdate(CcExp target, Seq<CcRecordField> fields, Location loc) ->
+			new CcRecordUpdate(
+					f.apply(target),
+					fields.map(field -> new CcRecordField(field.name(), f.apply(field.value()), field.loc())),
+					loc);
+		};
+	}
+
 	default CcExp substId(IdMap<Id> map) {
 		return switch (this) {
 		case CcCnst _ -> {
@@ -10,6 +10,8 @@ import zlk.util.pp.PrettyPrinter;
 
 /**
  * メソッドになる部分
+ * closureImplはクロージャ変換でクロージャの本体として作られたことを表す．
+ * このような関数はクロージャの作成からだけ参照され，モジュールの外からは呼ばれない．
  *
  * @author YuyaAizawa
  */
@@ -17,6 +19,7 @@ public record CcFunDecl(
 		Id id,
 		Seq<IcPattern> args,
 		CcExp body,
+		boolean closureImpl,
 		Location loc)
 implements PrettyPrintable, LocationHolder {
 
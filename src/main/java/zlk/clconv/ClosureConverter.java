@@ -58,6 +58,7 @@ import zlk.util.collection.SeqBuffer;
 /**
  * クロージャ変換と関数のトップレベルへのflattenを行う
  * 関数適用をトップレベルの呼出しと関数オブジェクトへのapplyに分離する
+ * 自由変数を持つ局所関数も，値として使われない限りクロージャを作らずに直接呼び出す
  */
 public final class ClosureConverter {
 
@@ -66,6 +67,17 @@ public final class ClosureConverter {
 	private final IdentityHashMap<ExpOrPattern, Type> nodeTypes;  // 項の型 TODO: caseのcondしか使っていないので消せそう
 	private final Set<Id> knowns;
 	private final IdMap<Integer> arities;  // その時点で直接呼出し可能であることが確定した関数の引数の数
+	private final IdMap<Lifted> lifteds;  // 自由変数を引数に加えてトップレベルに移した局所関数
+
+	/**
+	 * 自由変数を引数の前に加えてトップレベルに移した局所関数．
+	 * 引数が揃った呼出しは自由変数を渡す直接呼出しにでき，クロージャを作らずに済む．
+	 */
+	private record Lifted(Id implId, Seq<Id> frees, int arity) {
+		Seq<CcExp> caps() {
+			return frees.map(id -> (CcExp) new CcVar(id, Location.noLocation()));
+		}
+	}
 
 	private final SeqBuffer<CcFunDecl> toplevels;
 	private final AtomicInteger closureCount;
@@ -90,6 +102,7 @@ public final class ClosureConverter {
 			)
 		);
 
+		this.lifteds = new IdMap<>();
 		this.toplevels = new SeqBuffer<>();
 		this.closureCount = new AtomicInteger();
 	}
@@ -115,12 +128,13 @@ public final class ClosureConverter {
 		Seq<Id> frees = fvFunc(ccBody, args);
 
 		if(frees.isEmpty()) {
-			toplevels.add(new CcFunDecl(id, args, ccBody, body.loc()));
+			toplevels.add(new CcFunDecl(id, args, ccBody, false, body.loc()));
 			return Optional.empty();
 		} else {
 			CcFunDecl closureFunc = makeClosure(id, frees, args, ccBody, body.loc());
 			toplevels.add(closureFunc);
 			arities.remove(id);  // 直接呼出し出来なかったので取り除く
+			lifteds.put(id, new Lifted(closureFunc.id(), frees, args.size()));
 			knowns.add(closureFunc.id());
 			return Optional.of(new CcMkCls(
 					closureFunc.id(),
@@ -185,7 +199,7 @@ public final class ClosureConverter {
 
 		CcExp clsBody = rewriteCls(origId, clsId, caps.toSeq(), idMap, body);  // body.substId(idMap);
 
-		return new CcFunDecl(clsId, clsArgs.toSeq(), clsBody, loc);
+		return new CcFunDecl(clsId, clsArgs.toSeq(), clsBody, true, loc);
 	}
 	private CcExp rewriteCls(Id origId, Id clsId, Seq<CcVar> caps, IdMap<Id> idMap, CcExp target) {
 		Function<CcExp, CcExp> go = exp -> rewriteCls(origId, clsId, caps, idMap, exp);
@@ -303,6 +317,22 @@ public final class ClosureConverter {
 
 			Seq<CcExp> ccArgs = args.map(arg -> compile(arg));
 
+			// 持ち上げた局所関数は自由変数を先頭の引数として渡す
+			if(fun instanceof IcVarLocal v && lifteds.containsKey(v.id())) {
+				Lifted lifted = lifteds.get(v.id());
+				if(lifted.arity() > args.size()) {
+					yield new CcMkCls(lifted.implId(), Seq.concat(lifted.caps(), ccArgs), loc);
+				}
+				CcExp result = new CcDirectApp(
+						lifted.implId(),
+						Seq.concat(lifted.caps(), ccArgs.take(lifted.arity())),
+						loc);
+				if(lifted.arity() < args.size()) {
+					result = new CcClosureApp(result, ccArgs.drop(lifted.arity()), loc);
+				}
+				yield result;
+			}
+
 			if(callableId != null) {
 				int arity = arities.containsKey(callableId)
 						? arities.get(callableId)
@@ -356,11 +386,9 @@ public final class ClosureConverter {
 				Id id = decl.id();
 				if(decl.args().isEmpty()) {
 					result = new CcLet(id, valRhs.get(id), result, decl.loc());
-				} else {
-					CcExp cap = result;
-					result = closures.get(id)
-							.map(cls -> (CcExp)new CcLet(id, cls, cap, decl.loc()))
-							.orElse(cap);
+				} else if(closures.get(id).isPresent() && result.occurs(id)) {
+					// 値として使われる場合だけクロージャを作る
+					result = new CcLet(id, closures.get(id).get(), result, decl.loc());
 				}
 			}
 			yield result;
@@ -390,6 +418,7 @@ public final class ClosureConverter {
 		};
 	}
 
+
 	private Seq<Id> fvFunc(CcExp body, Seq<IcPattern> args) {
 		SeqBuffer<Id> free = new SeqBuffer<>();
 		Set<Id> bounded = new HashSet<>(knowns);
@@ -8,11 +8,14 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import zlk.bytecodegen.Instructions;
-import zlk.bytecodegen.Primitive;
 import zlk.common.Type;
 import zlk.common.id.Id;
 import zlk.util.collection.Seq;
 
+/**
+ * 組込み関数．
+ * 引数と戻り値はI32をint，Boolをbooleanとしてunboxedなままstackでやりとりする．
+ */
 public record Builtin(
 		Id id,
 		Type type,
@@ -25,53 +28,31 @@ implements Instructions {
 		return Seq.of(
 				new Builtin("Basic.False", BOOL, mv -> {
 					mv.visitInsn(Opcodes.ICONST_0);
-					Primitive.BOOL.genBoxing(mv);
 				}),
 				new Builtin("Basic.True", BOOL, mv -> {
 					mv.visitInsn(Opcodes.ICONST_1);
-					Primitive.BOOL.genBoxing(mv);
 				}),
 				new Builtin("Basic.isZero", i32bool, mv -> {
 					Label lTrue = new Label();
 					Label lEnd = new Label();
-					Primitive.INT.genUnboxing(mv);
 					mv.visitJumpInsn(Opcodes.IFEQ, lTrue);
 					mv.visitInsn(Opcodes.ICONST_0);
 					mv.visitJumpInsn(Opcodes.GOTO, lEnd);
 					mv.visitLabel(lTrue);
 					mv.visitInsn(Opcodes.ICONST_1);
 					mv.visitLabel(lEnd);
-					Primitive.BOOL.genBoxing(mv);
 				}),
 				new Builtin("Basic.add", i32i32i32, mv -> {
-					Primitive.INT.genUnboxing(mv);
-					mv.visitInsn(Opcodes.SWAP);
-					Primitive.INT.genUnboxing(mv);
 					mv.visitInsn(Opcodes.IADD);
-					Primitive.INT.genBoxing(mv);
 				}),
 				new Builtin("Basic.sub", i32i32i32, mv -> {
-					Primitive.INT.genUnboxing(mv);
-					mv.visitInsn(Opcodes.SWAP);
-					Primitive.INT.genUnboxing(mv);
-					mv.visitInsn(Opcodes.SWAP);
 					mv.visitInsn(Opcodes.ISUB);
-					Primitive.INT.genBoxing(mv);
 				}),
 				new Builtin("Basic.mul", i32i32i32, mv -> {
-					Primitive.INT.genUnboxing(mv);
-					mv.visitInsn(Opcodes.SWAP);
-					Primitive.INT.genUnboxing(mv);
 					mv.visitInsn(Opcodes.IMUL);
-					Primitive.INT.genBoxing(mv);
 				}),
 				new Builtin("Basic.div", i32i32i32, mv -> {  // TODO: 0除算は0を返すように
-					Primitive.INT.genUnboxing(mv);
-					mv.visitInsn(Opcodes.SWAP);
-					Primitive.INT.genUnboxing(mv);
-					mv.visitInsn(Opcodes.SWAP);
 					mv.visitInsn(Opcodes.IDIV);
-					Primitive.INT.genBoxing(mv);
 				}));
 	}
 
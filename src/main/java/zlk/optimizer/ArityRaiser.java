@@ -0,0 +1,171 @@
+package zlk.optimizer;
+
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcClosureApp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcMkCls;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 関数を返すトップレベル関数を，返す関数の引数まで受け取る非カリー化版に分ける．
+ *
+ * 対象は本体が計算を伴わない束縛（クロージャ，変数，定数）の後にクロージャを返す関数．
+ * 元の関数は非カリー化版のクロージャを返すだけのラッパーになり，部分適用に使われる．
+ * 引数の揃った呼出しは非カリー化版の直接呼出しに置き換える．
+ * 束縛が計算を伴わないので，部分適用の結果を使い回す場合も計算が重複しない．
+ */
+final class ArityRaiser {
+	private final IdMap<Type> types;
+	private final IdMap<Integer> arities;
+	private final IdMap<Raised> raiseds;
+
+	private record Raised(Id uncurriedId, int arity, int extra) {}
+
+	private ArityRaiser(CcModule module, IdMap<Type> types) {
+		this.types = types;
+		this.arities = module.funcs().fold(IdMap.folder(CcFunDecl::id, CcFunDecl::arity));
+		module.types().forEach(union -> union.ctors().forEach(ctor -> arities.put(ctor.id(), ctor.args().size())));
+		this.raiseds = new IdMap<>();
+
+		// 前の周回で分けたもの
+		IdMap<CcFunDecl> decls = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		module.funcs().forEach(decl -> {
+			CcFunDecl uncurried = decls.getOrNull(uncurriedId(decl.id()));
+			if(uncurried != null) {
+				raiseds.put(decl.id(), new Raised(uncurried.id(), decl.arity(), uncurried.arity() - decl.arity()));
+			}
+		});
+	}
+
+	static CcModule raise(CcModule module, IdMap<Type> types) {
+		ArityRaiser raiser = new ArityRaiser(module, types);
+
+		SeqBuffer<CcFunDecl> decls = new SeqBuffer<>();
+		module.funcs().forEach(decl -> raiser.split(decl).forEach(decls::add));
+
+		return new CcModule(
+				module.name(),
+				module.types(),
+				decls.toSeq().map(decl -> new CcFunDecl(
+						decl.id(),
+						decl.args(),
+						raiser.redirect(decl.body()),
+						decl.closureImpl(),
+						decl.loc())));
+	}
+
+	/**
+	 * 対象の関数をラッパーと非カリー化版に分ける
+	 */
+	private Seq<CcFunDecl> split(CcFunDecl decl) {
+		if(decl.arity() == 0
+				|| raiseds.containsKey(decl.id())
+				|| !decl.args().allMatch(arg -> arg instanceof IcPattern.Var)) {
+			return Seq.of(decl);
+		}
+		CcMkCls returned = returnedClosure(decl.body(), new IdMap<>());
+		if(returned == null || !arities.containsKey(returned.implId())) {
+			return Seq.of(decl);
+		}
+		int extra = arities.get(returned.implId()) - returned.caps().size();
+		Seq<Type> paramTys = types.get(decl.id()).flatten().dropLast();
+		if(extra <= 0 || decl.arity() + extra > paramTys.size()) {
+			return Seq.of(decl);
+		}
+
+		Id uncurriedId = uncurriedId(decl.id());
+		types.put(uncurriedId, types.get(decl.id()));
+		raiseds.put(decl.id(), new Raised(uncurriedId, decl.arity(), extra));
+
+		SeqBuffer<IcPattern> uncurriedArgs = new SeqBuffer<>();
+		uncurriedArgs.addAll(decl.args());
+		SeqBuffer<CcExp> extraArgs = new SeqBuffer<>();
+		for(int i = 0; i < extra; i++) {
+			Id param = Id.intern(uncurriedId, "$arg" + i);
+			types.put(param, paramTys.at(decl.arity() + i));
+			uncurriedArgs.add(new IcPattern.Var(param, decl.loc()));
+			extraArgs.add(new CcVar(param, decl.loc()));
+		}
+		CcExp uncurriedBody = replaceReturned(decl.body(), returned, extraArgs.toSeq());
+
+		CcExp wrapperBody = new CcMkCls(
+				uncurriedId,
+				decl.args().map(arg -> (CcExp) new CcVar(((IcPattern.Var) arg).id(), arg.loc())),
+				decl.loc());
+
+		return Seq.of(
+				new CcFunDecl(decl.id(), decl.args(), wrapperBody, decl.closureImpl(), decl.loc()),
+				new CcFunDecl(uncurriedId, uncurriedArgs.toSeq(), uncurriedBody, false, decl.loc()));
+	}
+
+	private static Id uncurriedId(Id original) {
+		return Id.intern(original, "$uncurried");
+	}
+
+	/**
+	 * 計算を伴わない束縛の後に返されるクロージャを求める
+	 */
+	private static CcMkCls returnedClosure(CcExp body, IdMap<CcMkCls> closures) {
+		return switch(body) {
+		case CcLet(Id var, CcExp boundExp, CcExp letBody, Location _) when isCheap(boundExp) -> {
+			IdMap<CcMkCls> inner = closures.clone();
+			if(boundExp instanceof CcMkCls mkCls) {
+				inner.put(var, mkCls);
+			}
+			yield returnedClosure(letBody, inner);
+		}
+		case CcMkCls mkCls when mkCls.caps().allMatch(ArityRaiser::isTrivial) -> mkCls;
+		case CcVar(Id id, Location _) -> closures.getOrNull(id);
+		default -> null;
+		};
+	}
+
+	private static CcExp replaceReturned(CcExp body, CcMkCls returned, Seq<CcExp> extraArgs) {
+		return switch(body) {
+		case CcLet(Id var, CcExp boundExp, CcExp letBody, Location loc) ->
+			new CcLet(var, boundExp, replaceReturned(letBody, returned, extraArgs), loc);
+		default ->
+			new CcDirectApp(returned.implId(), Seq.concat(returned.caps(), extraArgs), body.loc());
+		};
+	}
+
+	/**
+	 * 引数の揃った呼出しを非カリー化版へ向ける
+	 */
+	private CcExp redirect(CcExp exp) {
+		CcExp mapped = exp.mapChildren(this::redirect);
+		if(mapped instanceof CcClosureApp(CcDirectApp(Id funId, Seq<CcExp> args, Location _), Seq<CcExp> rest, Location loc)
+				&& raiseds.containsKey(funId)) {
+			Raised raised = raiseds.get(funId);
+			if(args.size() == raised.arity() && rest.size() >= raised.extra()) {
+				CcExp call = new CcDirectApp(
+						raised.uncurriedId(),
+						Seq.concat(args, rest.take(raised.extra())),
+						loc);
+				return rest.size() == raised.extra()
+						? call
+						: new CcClosureApp(call, rest.drop(raised.extra()), loc);
+			}
+		}
+		return mapped;
+	}
+
+	private static boolean isCheap(CcExp exp) {
+		return isTrivial(exp) || exp instanceof CcMkCls mkCls && mkCls.caps().allMatch(ArityRaiser::isTrivial);
+	}
+
+	private static boolean isTrivial(CcExp exp) {
+		return exp instanceof CcVar || exp instanceof CcCnst;
+	}
+}
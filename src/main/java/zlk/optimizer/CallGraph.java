@@ -0,0 +1,54 @@
+package zlk.optimizer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.util.StronglyConnectedComponents;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * トップレベル関数の参照関係．
+ *
+ * 直接呼出しとクロージャの生成を辺とするグラフの強連結成分から，再帰する関数を求める．
+ * クロージャ変換で持ち上げた関数を経由する再帰も含む．
+ */
+final class CallGraph {
+	private CallGraph() {}
+
+	/**
+	 * 自身に到達できるトップレベル関数を求める
+	 */
+	static Set<Id> recursives(CcModule module) {
+		IdMap<CcFunDecl> decls = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		IdMap<Seq<Id>> callees = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> callees(decl.body(), decls)));
+
+		Set<Id> recursives = new HashSet<>();
+		StronglyConnectedComponents.find(module.funcs().map(CcFunDecl::id), callees::get).forEach(component -> {
+			if(component.size() >= 2 || callees.get(component.head()).contains(component.head())) {
+				component.forEach(recursives::add);
+			}
+		});
+		return recursives;
+	}
+
+	private static Seq<Id> callees(CcExp body, IdMap<CcFunDecl> decls) {
+		SeqBuffer<Id> acc = new SeqBuffer<>();
+		body.walk(exp -> {
+			Id callee = switch(exp) {
+			case CcExp.CcDirectApp app -> app.funId();
+			case CcExp.CcMkCls mkCls -> mkCls.implId();
+			default -> null;
+			};
+			if(callee != null && decls.containsKey(callee)) {
+				acc.addIfNotContains(callee);
+			}
+		});
+		return acc.toSeq();
+	}
+}
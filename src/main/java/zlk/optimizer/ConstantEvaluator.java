@@ -0,0 +1,350 @@
+package zlk.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import zlk.clcalc.CcCaseBranch;
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCase;
+import zlk.clcalc.CcExp.CcClosureApp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcIf;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcMkCls;
+import zlk.clcalc.CcExp.CcRecord;
+import zlk.clcalc.CcExp.CcRecordAccess;
+import zlk.clcalc.CcExp.CcRecordField;
+import zlk.clcalc.CcExp.CcRecordUpdate;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.ConstValue;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.core.Builtin;
+import zlk.idcalc.IcExp;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 引数のないトップレベル宣言をコンパイル時に評価し，結果の値を組み立てる式で置き換える．
+ *
+ * 評価は{@link #FUEL}ステップと{@link #DEPTH_LIMIT}段の呼出しまでとし，
+ * 超えた場合や0除算など実行時に例外となる場合は元の式を残す．
+ * 結果が{@link #RESULT_SIZE_LIMIT}を超える大きさの式になる場合も元の式を残す．
+ * 置き換えた式はConstantDynamicで1度だけ組み立てられる．
+ */
+final class ConstantEvaluator {
+	static final int FUEL = 1_000_000;
+	static final int DEPTH_LIMIT = 200;  // 既定のスレッドスタックでも溢れない段数
+	static final int RESULT_SIZE_LIMIT = 1_000;
+
+	/**
+	 * 評価中の値
+	 */
+	private sealed interface Value {}
+	private record Const(ConstValue value) implements Value {}
+	private record Data(Id ctor, List<Value> fields) implements Value {}
+	private record Closure(Id implId, List<Value> caps) implements Value {}
+	private record Rec(Map<String, Value> fields) implements Value {}
+	private record Evaluating() implements Value {}  // 評価中の宣言の目印
+
+	private static final Value EVALUATING = new Evaluating();
+
+	/**
+	 * 評価を諦めたことを表す
+	 */
+	private static final class Stuck extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Stuck() {
+			super(null, null, false, false);
+		}
+	}
+
+	private final IdMap<CcFunDecl> decls;
+	private final IdMap<Integer> ctorArities;
+	private final IdMap<Integer> builtinArities;
+	private final IdMap<Value> constants;  // 評価済みの宣言
+	private int fuel;
+	private int depth;
+	private int resultSize;
+
+	private ConstantEvaluator(CcModule module) {
+		this.decls = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		this.ctorArities = new IdMap<>();
+		module.types().forEach(union -> union.ctors().forEach(ctor -> ctorArities.put(ctor.id(), ctor.args().size())));
+		this.builtinArities = Builtin.functions().fold(IdMap.folder(Builtin::id, b -> b.type().flatten().size() - 1));
+		this.constants = new IdMap<>();
+	}
+
+	static CcModule evaluate(CcModule module) {
+		ConstantEvaluator evaluator = new ConstantEvaluator(module);
+		return new CcModule(
+				module.name(),
+				module.types(),
+				module.funcs().map(decl -> decl.arity() > 0 || decl.body() instanceof CcCnst
+						? decl
+						: new CcFunDecl(decl.id(), decl.args(), evaluator.evaluate(decl), decl.closureImpl(), decl.loc())));
+	}
+
+	private CcExp evaluate(CcFunDecl decl) {
+		fuel = FUEL;
+		depth = 0;
+		resultSize = 0;
+		try {
+			return toExp(constant(decl.id()), decl.body().loc());
+		} catch(Stuck e) {
+			return decl.body();
+		}
+	}
+
+	private Value constant(Id id) {
+		Value cached = constants.getOrNull(id);
+		if(cached == EVALUATING) {  // 自身を参照する宣言
+			throw new Stuck();
+		}
+		if(cached != null) {
+			return cached;
+		}
+		if(++depth > DEPTH_LIMIT) {
+			throw new Stuck();
+		}
+		constants.put(id, EVALUATING);
+		Value value;
+		try {
+			value = eval(decls.get(id).body(), new IdMap<>());
+		} finally {
+			constants.remove(id);  // 諦めた場合は別の宣言から改めて評価できるようにする
+		}
+		constants.put(id, value);
+		depth--;
+		return value;
+	}
+
+	private Value eval(CcExp exp, IdMap<Value> env) {
+		if(--fuel < 0) {
+			throw new Stuck();
+		}
+		return switch(exp) {
+		case CcCnst(ConstValue value, Location _) -> new Const(value);
+		case CcVar(Id id, Location _) -> {
+			Value value = env.getOrNull(id);
+			if(value == null) {
+				throw new Stuck();
+			}
+			yield value;
+		}
+		case CcDirectApp(Id funId, Seq<CcExp> args, Location _) ->
+			call(funId, evalAll(args, env));
+		case CcClosureApp(CcExp funExp, Seq<CcExp> args, Location _) ->
+			apply(eval(funExp, env), evalAll(args, env));
+		case CcMkCls(Id implId, Seq<CcExp> caps, Location _) -> {
+			List<Value> capValues = evalAll(caps, env);
+			yield arity(implId) == capValues.size()
+					? call(implId, capValues)
+					: new Closure(implId, capValues);
+		}
+		case CcIf(CcExp cond, CcExp thenExp, CcExp elseExp, Location _) ->
+			eval(bool(eval(cond, env)) ? thenExp : elseExp, env);
+		case CcLet(Id var, CcExp boundExp, CcExp body, Location _) -> {
+			IdMap<Value> inner = env.clone();
+			inner.put(var, eval(boundExp, env));
+			yield eval(body, inner);
+		}
+		case CcCase(CcExp target, Type _, Seq<CcCaseBranch> branches, Location _) -> {
+			Value value = eval(target, env);
+			for(CcCaseBranch branch : branches) {
+				IdMap<Value> inner = env.clone();
+				if(match(branch.pattern(), value, inner)) {
+					yield eval(branch.body(), inner);
+				}
+			}
+			throw new Stuck();
+		}
+		case CcRecord(Seq<CcRecordField> fields, Location _) -> {
+			Map<String, Value> values = new LinkedHashMap<>();
+			fields.forEach(field -> values.put(field.name(), eval(field.value(), env)));
+			yield new Rec(values);
+		}
+		case CcRecordAccess(CcExp target, String field, Location _) -> {
+			Value value = record(eval(target, env)).get(field);
+			if(value == null) {
+				throw new Stuck();
+			}
+			yield value;
+		}
+		case CcRecordUpdate(CcExp target, Seq<CcRecordField> fields, Location _) -> {
+			Map<String, Value> values = new LinkedHashMap<>(record(eval(target, env)));
+			fields.forEach(field -> values.put(field.name(), eval(field.value(), env)));
+			yield new Rec(values);
+		}
+		};
+	}
+
+	private List<Value> evalAll(Seq<CcExp> exps, IdMap<Value> env) {
+		List<Value> values = new ArrayList<>(exps.size());
+		exps.forEach(exp -> values.add(eval(exp, env)));
+		return values;
+	}
+
+	private Value call(Id funId, List<Value> args) {
+		if(ctorArities.containsKey(funId)) {
+			return new Data(funId, List.copyOf(args));
+		}
+		CcFunDecl decl = decls.getOrNull(funId);
+		if(decl == null) {
+			return builtin(funId, args);
+		}
+		if(decl.arity() == 0) {
+			return constant(funId);
+		}
+		if(++depth > DEPTH_LIMIT) {
+			throw new Stuck();
+		}
+		IdMap<Value> env = new IdMap<>();
+		for(int i = 0; i < decl.arity(); i++) {
+			if(!match(decl.args().at(i), args.get(i), env)) {
+				throw new Stuck();
+			}
+		}
+		Value result = eval(decl.body(), env);
+		depth--;
+		return result;
+	}
+
+	private Value apply(Value fun, List<Value> args) {
+		if(!(fun instanceof Closure(Id implId, List<Value> caps))) {
+			throw new Stuck();
+		}
+		List<Value> all = new ArrayList<>(caps);
+		all.addAll(args);
+		int arity = arity(implId);
+		if(all.size() < arity) {
+			return new Closure(implId, all);
+		}
+		Value result = call(implId, all.subList(0, arity));
+		return all.size() == arity ? result : apply(result, all.subList(arity, all.size()));
+	}
+
+	private Value builtin(Id funId, List<Value> args) {
+		if(funId.equals(ConstantFolder.TRUE)) {
+			return new Const(ConstValue.TRUE);
+		}
+		if(funId.equals(ConstantFolder.FALSE)) {
+			return new Const(ConstValue.FALSE);
+		}
+		if(funId.equals(ConstantFolder.IS_ZERO)) {
+			return new Const(new ConstValue.Bool(i32(args.get(0)) == 0));
+		}
+		if(funId.equals(ConstantFolder.ADD) || funId.equals(ConstantFolder.SUB)
+				|| funId.equals(ConstantFolder.MUL) || funId.equals(ConstantFolder.DIV)) {
+			Optional<Integer> result = ConstantFolder.calc(funId, i32(args.get(0)), i32(args.get(1)));
+			return new Const(new ConstValue.I32(result.orElseThrow(Stuck::new)));
+		}
+		throw new Stuck();
+	}
+
+	private boolean match(IcPattern pattern, Value value, IdMap<Value> env) {
+		return switch(pattern) {
+		case IcPattern.Wildcard _ -> true;
+		case IcPattern.Var(Id id, Location _) -> {
+			env.put(id, value);
+			yield true;
+		}
+		case IcPattern.Dector(IcExp.IcVarCtor ctor, Seq<IcPattern.Arg> args, Location _) -> {
+			if(!(value instanceof Data(Id valueCtor, List<Value> fields)) || !valueCtor.equals(ctor.id())) {
+				yield false;
+			}
+			for(int i = 0; i < args.size(); i++) {
+				if(!match(args.at(i).pattern(), fields.get(i), env)) {
+					yield false;
+				}
+			}
+			yield true;
+		}
+		case IcPattern.Record(Seq<IcPattern.RecordField> fields, Location _) -> {
+			Map<String, Value> values = record(value);
+			for(IcPattern.RecordField field : fields) {
+				Value fieldValue = values.get(field.name());
+				if(fieldValue == null || !match(field.pattern(), fieldValue, env)) {
+					yield false;
+				}
+			}
+			yield true;
+		}
+		};
+	}
+
+	private int arity(Id implId) {
+		if(ctorArities.containsKey(implId)) {
+			return ctorArities.get(implId);
+		}
+		CcFunDecl decl = decls.getOrNull(implId);
+		if(decl != null) {
+			return decl.arity();
+		}
+		Integer arity = builtinArities.getOrNull(implId);
+		if(arity == null) {
+			throw new Stuck();
+		}
+		return arity;
+	}
+
+	private static int i32(Value value) {
+		if(value instanceof Const(ConstValue.I32(int n))) {
+			return n;
+		}
+		throw new Stuck();
+	}
+
+	private static boolean bool(Value value) {
+		if(value instanceof Const(ConstValue.Bool(boolean b))) {
+			return b;
+		}
+		throw new Stuck();
+	}
+
+	private static Map<String, Value> record(Value value) {
+		if(value instanceof Rec(Map<String, Value> fields)) {
+			return fields;
+		}
+		throw new Stuck();
+	}
+
+	/**
+	 * 値を組み立てる式を返す．共有された値も展開するので，節点の数が{@link #RESULT_SIZE_LIMIT}を超えた時点で諦める
+	 */
+	private CcExp toExp(Value value, Location loc) {
+		if(++resultSize > RESULT_SIZE_LIMIT) {
+			throw new Stuck();
+		}
+		return switch(value) {
+		case Const(ConstValue constant) -> new CcCnst(constant, loc);
+		case Data(Id ctor, List<Value> fields) ->
+			new CcDirectApp(ctor, toExps(fields, loc), loc);
+		case Closure(Id implId, List<Value> caps) ->
+			new CcMkCls(implId, toExps(caps, loc), loc);
+		case Rec(Map<String, Value> fields) -> {
+			SeqBuffer<CcRecordField> exps = new SeqBuffer<>();
+			fields.forEach((name, field) -> exps.add(new CcRecordField(name, toExp(field, loc), loc)));
+			yield new CcRecord(exps.toSeq(), loc);
+		}
+		case Evaluating _ -> throw new Stuck();
+		};
+	}
+
+	private Seq<CcExp> toExps(List<Value> values, Location loc) {
+		SeqBuffer<CcExp> exps = new SeqBuffer<>();
+		values.forEach(value -> exps.add(toExp(value, loc)));
+		return exps.toSeq();
+	}
+
+}
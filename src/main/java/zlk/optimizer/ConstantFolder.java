@@ -0,0 +1,109 @@
+package zlk.optimizer;
+
+import java.util.Optional;
+
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcIf;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.ConstValue;
+import zlk.common.Location;
+import zlk.common.id.Id;
+import zlk.util.collection.Seq;
+
+/**
+ * 組込み関数の定数引数の呼出しを畳み込み，条件が定数のifを簡約する．
+ *
+ * 加えて{@code add x 0}や{@code mul x 1}などの恒等式で呼出しを取り除く．
+ * 0除算は実行時の例外を保つため畳み込まない．
+ */
+final class ConstantFolder {
+	static final Id TRUE = Id.intern("Basic.True");
+	static final Id FALSE = Id.intern("Basic.False");
+	static final Id IS_ZERO = Id.intern("Basic.isZero");
+	static final Id ADD = Id.intern("Basic.add");
+	static final Id SUB = Id.intern("Basic.sub");
+	static final Id MUL = Id.intern("Basic.mul");
+	static final Id DIV = Id.intern("Basic.div");
+
+	private ConstantFolder() {}
+
+	static CcModule fold(CcModule module) {
+		return new CcModule(
+				module.name(),
+				module.types(),
+				module.funcs().map(decl -> new CcFunDecl(decl.id(), decl.args(), fold(decl.body()), decl.closureImpl(), decl.loc())));
+	}
+
+	static CcExp fold(CcExp exp) {
+		CcExp folded = exp.mapChildren(ConstantFolder::fold);
+		return switch(folded) {
+		case CcDirectApp(Id funId, Seq<CcExp> args, Location loc) ->
+			foldBuiltin(funId, args, loc).orElse(folded);
+		case CcIf(CcCnst(ConstValue.Bool(boolean cond), Location _), CcExp thenExp, CcExp elseExp, Location _) ->
+			cond ? thenExp : elseExp;
+		default -> folded;
+		};
+	}
+
+	private static Optional<CcExp> foldBuiltin(Id funId, Seq<CcExp> args, Location loc) {
+		if(funId.equals(TRUE)) {
+			return Optional.of(new CcCnst(ConstValue.TRUE, loc));
+		}
+		if(funId.equals(FALSE)) {
+			return Optional.of(new CcCnst(ConstValue.FALSE, loc));
+		}
+		if(funId.equals(IS_ZERO)) {
+			return i32(args.at(0)).map(n -> new CcCnst(new ConstValue.Bool(n == 0), loc));
+		}
+
+		if(!(funId.equals(ADD) || funId.equals(SUB) || funId.equals(MUL) || funId.equals(DIV))) {
+			return Optional.empty();
+		}
+		CcExp left = args.at(0);
+		CcExp right = args.at(1);
+		Optional<Integer> l = i32(left);
+		Optional<Integer> r = i32(right);
+		if(l.isPresent() && r.isPresent()) {
+			return calc(funId, l.get(), r.get()).map(n -> new CcCnst(new ConstValue.I32(n), loc));
+		}
+
+		// 恒等式
+		if(funId.equals(ADD)) {
+			if(is(r, 0)) return Optional.of(left);
+			if(is(l, 0)) return Optional.of(right);
+		} else if(funId.equals(SUB)) {
+			if(is(r, 0)) return Optional.of(left);
+		} else if(funId.equals(MUL)) {
+			if(is(r, 1)) return Optional.of(left);
+			if(is(l, 1)) return Optional.of(right);
+			// 捨てる側が変数であれば評価を省いても意味が変わらない
+			if(is(r, 0) && left instanceof CcVar) return Optional.of(right);
+			if(is(l, 0) && right instanceof CcVar) return Optional.of(left);
+		} else if(funId.equals(DIV)) {
+			if(is(r, 1)) return Optional.of(left);
+		}
+		return Optional.empty();
+	}
+
+	static Optional<Integer> calc(Id funId, int l, int r) {
+		if(funId.equals(ADD)) return Optional.of(l + r);
+		if(funId.equals(SUB)) return Optional.of(l - r);
+		if(funId.equals(MUL)) return Optional.of(l * r);
+		if(r == 0) return Optional.empty();
+		return Optional.of(l / r);
+	}
+
+	private static Optional<Integer> i32(CcExp exp) {
+		return exp instanceof CcCnst(ConstValue.I32(int value), Location _)
+				? Optional.of(value)
+				: Optional.empty();
+	}
+
+	private static boolean is(Optional<Integer> value, int expected) {
+		return value.isPresent() && value.get() == expected;
+	}
+}
@@ -0,0 +1,108 @@
+package zlk.optimizer;
+
+import java.util.Set;
+
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 小さなトップレベル関数の直接呼出しを本体で置き換える．
+ *
+ * 対象は引数を持ち，再帰せず，引数のパターンが変数かワイルドカードで，
+ * 本体の大きさが{@link #SIZE_LIMIT}以下の関数．
+ * 展開した本体の中の呼出しも{@link #DEPTH_LIMIT}段まで展開する．
+ * 変数と定数以外の実引数はletで束縛し，評価の順序と回数を保つ．
+ * 元の関数はクロージャや他のモジュールから使われうるので残す．
+ */
+final class Inliner {
+	static final int SIZE_LIMIT = 24;
+	static final int DEPTH_LIMIT = 4;
+
+	private final IdMap<CcFunDecl> candidates;
+	private final IdMap<Type> types;
+	private final Renamer renamer;
+
+	private Inliner(CcModule module, IdMap<Type> types, Renamer renamer) {
+		Set<Id> recursives = CallGraph.recursives(module);
+		this.candidates = module.funcs()
+				.filter(decl -> isCandidate(decl, recursives))
+				.fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		this.types = types;
+		this.renamer = renamer;
+	}
+
+	static CcModule inline(CcModule module, IdMap<Type> types, Renamer renamer) {
+		Inliner inliner = new Inliner(module, types, renamer);
+		return new CcModule(
+				module.name(),
+				module.types(),
+				module.funcs().map(decl -> new CcFunDecl(decl.id(), decl.args(), inliner.inline(decl.body(), 0), decl.closureImpl(), decl.loc())));
+	}
+
+	private CcExp inline(CcExp exp, int depth) {
+		CcExp mapped = exp.mapChildren(child -> inline(child, depth));
+		if(depth < DEPTH_LIMIT
+				&& mapped instanceof CcDirectApp(Id funId, Seq<CcExp> args, Location loc)
+				&& candidates.containsKey(funId)
+				&& candidates.get(funId).arity() == args.size()) {
+			return inline(expand(candidates.get(funId), args, loc), depth + 1);
+		}
+		return mapped;
+	}
+
+	private CcExp expand(CcFunDecl decl, Seq<CcExp> args, Location loc) {
+		record Binding(Id var, CcExp boundExp) {}
+
+		Seq<Type> paramTys = types.get(decl.id()).flatten();
+		IdMap<CcExp> env = new IdMap<>();
+		SeqBuffer<Binding> bindings = new SeqBuffer<>();
+		decl.args().forEachIndexed((i, param) -> {
+			CcExp arg = args.at(i);
+			switch(param) {
+			case IcPattern.Var(Id id, Location _) when isTrivial(arg) ->
+				env.put(id, arg);
+			case IcPattern.Var(Id id, Location varLoc) -> {
+				Id fresh = renamer.fresh(id, paramTys.at(i));
+				env.put(id, new CcVar(fresh, varLoc));
+				bindings.add(new Binding(fresh, arg));
+			}
+			default -> {
+				// 使われない引数も例外などのために評価する
+				if(!isTrivial(arg)) {
+					bindings.add(new Binding(renamer.fresh(decl.id(), paramTys.at(i)), arg));
+				}
+			}
+			}
+		});
+
+		CcExp body = renamer.copy(decl.body(), env);
+		for(Binding binding : bindings.reverseOrder()) {
+			body = new CcLet(binding.var(), binding.boundExp(), body, loc);
+		}
+		return body;
+	}
+
+	private static boolean isCandidate(CcFunDecl decl, Set<Id> recursives) {
+		return decl.arity() > 0
+				&& !recursives.contains(decl.id())
+				&& decl.args().allMatch(param -> param instanceof IcPattern.Var || param instanceof IcPattern.Wildcard)
+				&& decl.body().size() <= SIZE_LIMIT;
+	}
+
+	private static boolean isTrivial(CcExp exp) {
+		return exp instanceof CcVar || exp instanceof CcCnst;
+	}
+
+}
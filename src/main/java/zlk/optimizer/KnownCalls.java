@@ -0,0 +1,101 @@
+package zlk.optimizer;
+
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcClosureApp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcMkCls;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.Location;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.util.collection.Seq;
+
+/**
+ * 呼び出す関数が静的に分かるクロージャの適用を直接呼出しに置き換える．
+ *
+ * {@link CcMkCls}そのものと，letでそれに束縛された変数の適用が対象．
+ * キャプチャは変数か定数の場合だけ追跡し，直接呼出しの先頭の引数として渡す．
+ * 置き換えの結果使われなくなったクロージャの生成は取り除く．
+ */
+final class KnownCalls {
+	private final IdMap<Integer> arities;
+
+	private KnownCalls(CcModule module) {
+		this.arities = module.funcs().fold(IdMap.folder(CcFunDecl::id, CcFunDecl::arity));
+		module.types().forEach(union -> union.ctors().forEach(ctor -> arities.put(ctor.id(), ctor.args().size())));
+	}
+
+	static CcModule resolve(CcModule module) {
+		KnownCalls knownCalls = new KnownCalls(module);
+		return new CcModule(
+				module.name(),
+				module.types(),
+				module.funcs().map(decl -> new CcFunDecl(
+						decl.id(),
+						decl.args(),
+						knownCalls.resolve(decl.body(), new IdMap<>()),
+						decl.closureImpl(),
+						decl.loc())));
+	}
+
+	private CcExp resolve(CcExp exp, IdMap<CcMkCls> knowns) {
+		return switch(exp) {
+		case CcLet(Id var, CcExp boundExp, CcExp body, Location loc) -> {
+			CcExp resolvedBound = resolve(boundExp, knowns);
+			CcMkCls known = asKnown(resolvedBound, knowns);
+			if(known == null) {
+				yield new CcLet(var, resolvedBound, resolve(body, knowns), loc);
+			}
+			IdMap<CcMkCls> inner = knowns.clone();
+			inner.put(var, known);
+			CcExp resolvedBody = resolve(body, inner);
+			yield resolvedBody.occurs(var)
+					? new CcLet(var, resolvedBound, resolvedBody, loc)
+					: resolvedBody;  // クロージャの生成に副作用はない
+		}
+		case CcClosureApp(CcLet(Id var, CcExp boundExp, CcExp body, Location letLoc), Seq<CcExp> args, Location loc) ->
+			// letの本体へ適用を移し，束縛されたクロージャを見えるようにする．変数は一意なので捕獲は起きない
+			resolve(new CcLet(var, boundExp, new CcClosureApp(body, args, loc), letLoc), knowns);
+		case CcClosureApp(CcExp funExp, Seq<CcExp> args, Location loc) -> {
+			CcExp resolvedFun = resolve(funExp, knowns);
+			Seq<CcExp> resolvedArgs = args.map(arg -> resolve(arg, knowns));
+			CcMkCls known = asKnown(resolvedFun, knowns);
+			if(known == null || !arities.containsKey(known.implId())) {
+				yield new CcClosureApp(resolvedFun, resolvedArgs, loc);
+			}
+			yield apply(known, resolvedArgs, loc);
+		}
+		default -> exp.mapChildren(child -> resolve(child, knowns));
+		};
+	}
+
+	private CcExp apply(CcMkCls known, Seq<CcExp> args, Location loc) {
+		int arity = arities.get(known.implId());
+		Seq<CcExp> allArgs = Seq.concat(known.caps(), args);
+		if(allArgs.size() < arity) {
+			return new CcMkCls(known.implId(), allArgs, loc);
+		}
+		CcExp call = new CcDirectApp(known.implId(), allArgs.take(arity), loc);
+		if(allArgs.size() == arity) {
+			return call;
+		}
+		return new CcClosureApp(call, allArgs.drop(arity), loc);
+	}
+
+	private static CcMkCls asKnown(CcExp exp, IdMap<CcMkCls> knowns) {
+		return switch(exp) {
+		case CcMkCls mkCls when mkCls.caps().allMatch(KnownCalls::isTrivial) -> mkCls;
+		case CcVar(Id id, Location _) -> knowns.getOrNull(id);
+		default -> null;
+		};
+	}
+
+	private static boolean isTrivial(CcExp exp) {
+		return exp instanceof CcVar || exp instanceof CcCnst;
+	}
+
+}
@@ -0,0 +1,168 @@
+package zlk.optimizer;
+
+import zlk.clcalc.CcCaseBranch;
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCase;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.idcalc.IcExp.IcVarCtor;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 同じ関数の中で組み立てたコンストラクタに対するcase式を，一致する分岐の本体で置き換える．
+ *
+ * 対象は引数が変数，定数，引数のないコンストラクタとそれらのコンストラクタ適用だけのコンストラクタ適用と，
+ * letでそれに束縛された変数．パターンの変数はコンストラクタの引数で置き換え，使われなくなった組み立ては取り除く．
+ * インライン展開した関数がその場で作った値を分解する場合に，割り当てと分岐の両方がなくなる．
+ */
+final class KnownCases {
+	private enum Match { YES, NO, UNKNOWN }
+	private record Binding(Id var, CcExp boundExp) {}
+
+	private final IdMap<Integer> ctorArities;
+	private final Renamer renamer;
+
+	private KnownCases(CcModule module, Renamer renamer) {
+		this.ctorArities = new IdMap<>();
+		module.types().forEach(union -> union.ctors().forEach(ctor -> ctorArities.put(ctor.id(), ctor.args().size())));
+		this.renamer = renamer;
+	}
+
+	static CcModule resolve(CcModule module, Renamer renamer) {
+		KnownCases knownCases = new KnownCases(module, renamer);
+		return new CcModule(
+				module.name(),
+				module.types(),
+				module.funcs().map(decl -> new CcFunDecl(
+						decl.id(),
+						decl.args(),
+						knownCases.resolve(decl.body(), new IdMap<>()),
+						decl.closureImpl(),
+						decl.loc())));
+	}
+
+	private CcExp resolve(CcExp exp, IdMap<CcDirectApp> allocs) {
+		return switch(exp) {
+		case CcLet(Id var, CcExp boundExp, CcExp body, Location loc) -> {
+			CcExp resolvedBound = resolve(boundExp, allocs);
+			CcDirectApp alloc = asAlloc(resolvedBound);
+			if(alloc == null) {
+				yield new CcLet(var, resolvedBound, resolve(body, allocs), loc);
+			}
+			IdMap<CcDirectApp> inner = allocs.clone();
+			inner.put(var, alloc);
+			CcExp resolvedBody = resolve(body, inner);
+			yield resolvedBody.occurs(var)
+					? new CcLet(var, resolvedBound, resolvedBody, loc)
+					: resolvedBody;  // 組み立てに副作用はない
+		}
+		case CcCase(CcExp target, Type targetTy, Seq<CcCaseBranch> branches, Location loc) -> {
+			CcExp resolvedTarget = resolve(target, allocs);
+			if(isAtomic(resolvedTarget) || asAlloc(resolvedTarget) != null) {
+				for(CcCaseBranch branch : branches) {
+					IdMap<CcExp> env = new IdMap<>();
+					SeqBuffer<Binding> bindings = new SeqBuffer<>();
+					Match match = match(branch.pattern(), resolvedTarget, allocs, env, bindings);
+					if(match == Match.YES) {
+						CcExp body = renamer.copy(branch.body(), env);
+						for(Binding binding : bindings.reverseOrder()) {
+							body = new CcLet(binding.var(), binding.boundExp(), body, loc);
+						}
+						yield resolve(body, allocs);
+					}
+					if(match == Match.UNKNOWN) {
+						break;
+					}
+				}
+			}
+			yield new CcCase(
+					resolvedTarget,
+					targetTy,
+					branches.map(branch -> new CcCaseBranch(
+							branch.pattern(),
+							resolve(branch.body(), allocs),
+							branch.loc())),
+					loc);
+		}
+		default -> exp.mapChildren(child -> resolve(child, allocs));
+		};
+	}
+
+	/**
+	 * 値がパターンに一致するか静的に判定する．一致すればパターンの変数の置き換えをenvに加える．
+	 * 複製できない値はbindingsに加えた変数へ束縛する
+	 */
+	private Match match(
+			IcPattern pattern,
+			CcExp value,
+			IdMap<CcDirectApp> allocs,
+			IdMap<CcExp> env,
+			SeqBuffer<Binding> bindings) {
+		return switch(pattern) {
+		case IcPattern.Wildcard _ -> Match.YES;
+		case IcPattern.Var(Id id, Location _) -> {
+			if(isAtomic(value)) {
+				env.put(id, value);
+			} else {
+				Id fresh = renamer.fresh(id);
+				env.put(id, new CcVar(fresh, value.loc()));
+				bindings.add(new Binding(fresh, value));
+			}
+			yield Match.YES;
+		}
+		case IcPattern.Dector(IcVarCtor ctor, Seq<IcPattern.Arg> args, Location _) -> {
+			CcDirectApp alloc = value instanceof CcVar(Id id, Location _) ? allocs.getOrNull(id) : asAlloc(value);
+			if(alloc == null) {
+				yield Match.UNKNOWN;
+			}
+			if(!alloc.funId().equals(ctor.id())) {
+				yield Match.NO;
+			}
+			for(int i = 0; i < args.size(); i++) {
+				Match argMatch = match(args.at(i).pattern(), alloc.args().at(i), allocs, env, bindings);
+				if(argMatch != Match.YES) {
+					yield argMatch;
+				}
+			}
+			yield Match.YES;
+		}
+		case IcPattern.Record _ -> Match.UNKNOWN;
+		};
+	}
+
+	/**
+	 * 引数が{@link #isAtomic}な式か，それ自身が対象となるコンストラクタ適用だけからなるコンストラクタ適用であれば返す
+	 */
+	private CcDirectApp asAlloc(CcExp exp) {
+		if(exp instanceof CcDirectApp app
+				&& ctorArities.containsKey(app.funId())
+				&& ctorArities.get(app.funId()) == app.args().size()
+				&& app.args().allMatch(arg -> isAtomic(arg) || asAlloc(arg) != null)) {
+			return app;
+		}
+		return null;
+	}
+
+	/**
+	 * 評価に副作用がなく，複製しても割り当てが増えない式か
+	 */
+	private boolean isAtomic(CcExp exp) {
+		return switch(exp) {
+		case CcVar _, CcCnst _ -> true;
+		case CcDirectApp(Id funId, Seq<CcExp> args, Location _) ->
+			args.isEmpty() && ctorArities.containsKey(funId) && ctorArities.get(funId) == 0;
+		default -> false;
+		};
+	}
+
+}
@@ -0,0 +1,279 @@
+package zlk.optimizer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import zlk.clcalc.CcCaseBranch;
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCase;
+import zlk.clcalc.CcExp.CcClosureApp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcIf;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcMkCls;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.ConstValue;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * letの束縛を使われる場所へ近づけ，使われない束縛を取り除く．
+ *
+ * 束縛する式が必ず停止し例外も起こさない（全域である）場合に限り，
+ * 使われない束縛を取り除き，1つの分岐でしか使われない束縛をその分岐の中へ移す．
+ * また，直接は呼ばれないクロージャの本体の先頭にあり，キャプチャだけに依存する全域な束縛は，
+ * クロージャの生成時に1度だけ計算してキャプチャとして渡す．
+ * 再帰する関数の呼出しや0除算の可能性のある除算，クロージャの適用は全域とみなさない．
+ */
+final class LetFloater {
+	private record Hoisting(CcFunDecl decl, Seq<Id> capParams, Seq<CcLet> lets) {}
+
+	private final IdMap<CcFunDecl> decls;
+	private final Set<Id> ctors;
+	private final Set<Id> totals;  // 全域な関数
+	private final IdMap<Type> types;
+	private final Renamer renamer;
+
+	private LetFloater(CcModule module, IdMap<Type> types, Renamer renamer) {
+		this.decls = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		this.ctors = new HashSet<>();
+		module.types().forEach(union -> union.ctors().forEach(ctor -> ctors.add(ctor.id())));
+		this.totals = new HashSet<>();
+		this.types = types;
+		this.renamer = renamer;
+
+		// 再帰しない関数は呼び出す関数から順に決まる
+		Set<Id> recursives = CallGraph.recursives(module);
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(CcFunDecl decl : module.funcs()) {
+				if(!recursives.contains(decl.id()) && !totals.contains(decl.id()) && isTotal(decl.body())) {
+					totals.add(decl.id());
+					changed = true;
+				}
+			}
+		}
+	}
+
+	static CcModule floatLets(CcModule module, IdMap<Type> types, Renamer renamer) {
+		LetFloater floater = new LetFloater(module, types, renamer);
+		CcModule floated = new CcModule(
+				module.name(),
+				module.types(),
+				module.funcs().map(decl -> new CcFunDecl(decl.id(), decl.args(), floater.floatIn(decl.body()), decl.closureImpl(), decl.loc())));
+		return floater.hoistFromClosures(floated);
+	}
+
+	private CcExp floatIn(CcExp exp) {
+		CcExp mapped = exp.mapChildren(this::floatIn);
+		if(mapped instanceof CcLet(Id var, CcExp boundExp, CcExp body, Location loc)) {
+			return sink(var, boundExp, body, loc);
+		}
+		return mapped;
+	}
+
+	/**
+	 * 束縛をbodyの中で使われる位置へ移す
+	 */
+	private CcExp sink(Id var, CcExp boundExp, CcExp body, Location loc) {
+		if(body instanceof CcVar(Id id, Location _) && id.equals(var)) {
+			return boundExp;
+		}
+		if(!isTotal(boundExp)) {
+			return new CcLet(var, boundExp, body, loc);
+		}
+		if(!body.occurs(var)) {
+			return body;
+		}
+		return switch(body) {
+		case CcIf(CcExp cond, CcExp thenExp, CcExp elseExp, Location ifLoc) when !cond.occurs(var) -> {
+			if(!elseExp.occurs(var)) {
+				yield new CcIf(cond, sink(var, boundExp, thenExp, loc), elseExp, ifLoc);
+			}
+			if(!thenExp.occurs(var)) {
+				yield new CcIf(cond, thenExp, sink(var, boundExp, elseExp, loc), ifLoc);
+			}
+			yield new CcLet(var, boundExp, body, loc);
+		}
+		case CcCase(CcExp target, Type targetTy, Seq<CcCaseBranch> branches, Location caseLoc) when !target.occurs(var) -> {
+			Seq<CcCaseBranch> users = branches.filter(branch -> branch.body().occurs(var));
+			if(users.size() != 1) {
+				yield new CcLet(var, boundExp, body, loc);
+			}
+			CcCaseBranch user = users.head();
+			yield new CcCase(
+					target,
+					targetTy,
+					branches.map(branch -> branch != user ? branch : new CcCaseBranch(
+							branch.pattern(),
+							sink(var, boundExp, branch.body(), loc),
+							branch.loc())),
+					caseLoc);
+		}
+		case CcLet(Id inner, CcExp innerBound, CcExp innerBody, Location innerLoc) when !innerBound.occurs(var) ->
+			// 全域な式は評価の順序を変えても結果が同じ
+			new CcLet(inner, innerBound, sink(var, boundExp, innerBody, loc), innerLoc);
+		default -> new CcLet(var, boundExp, body, loc);
+		};
+	}
+
+	/**
+	 * キャプチャだけに依存する本体の先頭の束縛を，クロージャを作る側へ移す
+	 */
+	private CcModule hoistFromClosures(CcModule module) {
+		// 直接呼ばれる関数や，キャプチャの数が揃わない関数は対象にしない
+		Map<Id, Integer> capCounts = new HashMap<>();
+		Set<Id> blocked = new HashSet<>();
+		module.funcs().forEach(decl -> decl.body().walk(exp -> {
+			switch(exp) {
+			case CcDirectApp app -> blocked.add(app.funId());
+			case CcMkCls(Id implId, Seq<CcExp> caps, Location _) -> {
+				if(!caps.allMatch(cap -> cap instanceof CcVar || cap instanceof CcCnst)
+						|| capCounts.getOrDefault(implId, caps.size()) != caps.size()) {
+					blocked.add(implId);
+				}
+				capCounts.put(implId, caps.size());
+			}
+			default -> {}
+			}
+		}));
+
+		IdMap<Hoisting> hoistings = new IdMap<>();
+		module.funcs().forEach(decl -> {
+			Integer capCount = capCounts.get(decl.id());
+			if(capCount != null && !blocked.contains(decl.id()) && decl.closureImpl()) {
+				Hoisting hoisting = hoisting(decl, capCount);
+				if(hoisting != null) {
+					hoistings.put(decl.id(), hoisting);
+				}
+			}
+		});
+		if(hoistings.isEmpty()) {
+			return module;
+		}
+
+		SeqBuffer<CcFunDecl> funcs = new SeqBuffer<>();
+		module.funcs().forEach(decl -> {
+			CcFunDecl target = hoistings.containsKey(decl.id()) ? hoistings.get(decl.id()).decl() : decl;
+			funcs.add(new CcFunDecl(target.id(), target.args(), hoist(target.body(), hoistings), target.closureImpl(), target.loc()));
+		});
+		return new CcModule(module.name(), module.types(), funcs.toSeq());
+	}
+
+	/**
+	 * 先頭の束縛を引数に変えた関数を作る．移せる束縛がなければnull
+	 */
+	private Hoisting hoisting(CcFunDecl impl, int capCount) {
+		Seq<IcPattern> capArgs = impl.args().take(capCount);
+		if(!capArgs.allMatch(arg -> arg instanceof IcPattern.Var)) {
+			return null;
+		}
+		Seq<Id> capParams = capArgs.map(arg -> ((IcPattern.Var) arg).id());
+
+		Set<Id> available = new HashSet<>();
+		capParams.forEach(available::add);
+		SeqBuffer<CcLet> lets = new SeqBuffer<>();
+		CcExp rest = impl.body();
+		while(rest instanceof CcLet let && isTotal(let.boundExp()) && freeIn(let.boundExp(), available)) {
+			lets.add(let);
+			available.add(let.var());
+			rest = let.body();
+		}
+		if(lets.isEmpty()) {
+			return null;
+		}
+
+		Id hoistedId = Id.intern(impl.id(), "$hoisted");
+		SeqBuffer<IcPattern> args = new SeqBuffer<>();
+		SeqBuffer<Type> argTys = new SeqBuffer<>();
+		lets.forEach(let -> {
+			args.add(new IcPattern.Var(let.var(), let.loc()));
+			argTys.add(types.get(let.var()));
+		});
+		args.addAll(impl.args());
+		argTys.addAll(types.get(impl.id()).flatten());
+		types.put(hoistedId, Type.fromSeq(argTys.toSeq()));
+		return new Hoisting(new CcFunDecl(hoistedId, args.toSeq(), rest, true, impl.loc()), capParams, lets.toSeq());
+	}
+
+	private CcExp hoist(CcExp exp, IdMap<Hoisting> hoistings) {
+		CcExp mapped = exp.mapChildren(child -> hoist(child, hoistings));
+		if(!(mapped instanceof CcMkCls(Id implId, Seq<CcExp> caps, Location loc)) || !hoistings.containsKey(implId)) {
+			return mapped;
+		}
+		Hoisting hoisting = hoistings.get(implId);
+
+		// 作る側で束縛を計算してキャプチャに加える
+		IdMap<CcExp> env = new IdMap<>();
+		hoisting.capParams().forEachIndexed((i, param) -> env.put(param, caps.at(i)));
+		SeqBuffer<CcLet> siteLets = new SeqBuffer<>();
+		SeqBuffer<CcExp> newCaps = new SeqBuffer<>();
+		hoisting.lets().forEach(let -> {
+			Id fresh = renamer.fresh(let.var());
+			siteLets.add(new CcLet(fresh, renamer.copy(let.boundExp(), env), null, let.loc()));
+			env.put(let.var(), new CcVar(fresh, loc));
+			newCaps.add(new CcVar(fresh, loc));
+		});
+		newCaps.addAll(caps);
+
+		CcExp result = new CcMkCls(hoisting.decl().id(), newCaps.toSeq(), loc);
+		for(CcLet let : siteLets.reverseOrder()) {
+			result = new CcLet(let.var(), let.boundExp(), result, let.loc());
+		}
+		return result;
+	}
+
+	/**
+	 * 必ず停止し例外を起こさない式か
+	 */
+	private boolean isTotal(CcExp exp) {
+		boolean[] total = {true};
+		exp.walk(sub -> total[0] &= switch(sub) {
+		case CcDirectApp(Id funId, Seq<CcExp> args, Location _) -> isTotalCall(funId, args);
+		case CcMkCls(Id implId, Seq<CcExp> caps, Location _) ->
+			!decls.containsKey(implId) || decls.get(implId).arity() > caps.size() || totals.contains(implId);
+		case CcClosureApp _ -> false;
+		default -> true;
+		});
+		return total[0];
+	}
+
+	private boolean isTotalCall(Id funId, Seq<CcExp> args) {
+		if(ctors.contains(funId)) {
+			return true;
+		}
+		if(decls.containsKey(funId)) {
+			return totals.contains(funId);
+		}
+		if(funId.equals(ConstantFolder.DIV)) {
+			return args.at(1) instanceof CcCnst(ConstValue.I32(int divisor), Location _) && divisor != 0;
+		}
+		return true;
+	}
+
+	private static boolean freeIn(CcExp exp, Set<Id> available) {
+		Set<Id> bound = new HashSet<>(available);
+		boolean[] closed = {true};
+		exp.walk(sub -> {
+			switch(sub) {
+			case CcLet let -> bound.add(let.var());
+			case CcCase cases -> cases.branches().forEach(branch -> branch.pattern().accumulateVars(bound));
+			case CcVar(Id id, Location _) -> closed[0] &= bound.contains(id);
+			default -> {}
+			}
+		});
+		return closed[0];
+	}
+
+}
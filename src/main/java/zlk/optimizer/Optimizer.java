@@ -0,0 +1,49 @@
+package zlk.optimizer;
+
+import zlk.clcalc.CcModule;
+import zlk.common.Type;
+import zlk.common.id.IdMap;
+
+/**
+ * クロージャ変換後のモジュールを最適化する．
+ * 各パスは意味を変えずに{@link CcModule}を書き換える．
+ */
+public final class Optimizer {
+	static final int ROUNDS = 3;  // 非カリー化，インライン展開，既知の呼出しとcaseの解決を繰り返す回数
+
+	private Optimizer() {}
+
+	/**
+	 * モジュールを最適化する
+	 * @param module クロージャ変換後のモジュール
+	 * @param types 各変数の型．最適化で導入した変数の型が追加される
+	 * @return 最適化したモジュール
+	 */
+	public static CcModule optimize(CcModule module, IdMap<Type> types) {
+		return optimize(module, types, true);
+	}
+
+	/**
+	 * モジュールを最適化する
+	 * @param module クロージャ変換後のモジュール
+	 * @param types 各変数の型．最適化で導入した変数の型が追加される
+	 * @param specialize 多相な関数を呼出し時の型へ特殊化するか．コードが増えるので無効にできる
+	 * @return 最適化したモジュール
+	 */
+	public static CcModule optimize(CcModule module, IdMap<Type> types, boolean specialize) {
+		Renamer renamer = new Renamer("inl", types);
+		CcModule optimized = ConstantFolder.fold(module);
+		for(int i = 0; i < ROUNDS; i++) {
+			optimized = ArityRaiser.raise(optimized, types);
+			optimized = Inliner.inline(optimized, types, renamer);
+			optimized = KnownCalls.resolve(optimized);
+			optimized = KnownCases.resolve(optimized, renamer);
+		}
+		if(specialize) {
+			optimized = Specializer.specialize(optimized, types, new Renamer("spec", types));
+		}
+		optimized = ConstantFolder.fold(optimized);
+		optimized = LetFloater.floatLets(optimized, types, new Renamer("flt", types));
+		return ConstantEvaluator.evaluate(optimized);
+	}
+}
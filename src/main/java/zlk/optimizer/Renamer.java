@@ -0,0 +1,99 @@
+package zlk.optimizer;
+
+import zlk.clcalc.CcCaseBranch;
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCase;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.idcalc.IcExp.IcVarCtor;
+import zlk.idcalc.IcPattern;
+import zlk.idcalc.IcPattern.Arg;
+import zlk.idcalc.IcPattern.Dector;
+import zlk.idcalc.IcPattern.Record;
+import zlk.idcalc.IcPattern.RecordField;
+import zlk.idcalc.IcPattern.Var;
+import zlk.idcalc.IcPattern.Wildcard;
+import zlk.util.collection.Seq;
+
+/**
+ * 式を複製する際に束縛される変数へ新しい{@code Id}を割り当てる．
+ *
+ * 同じ関数本体を複数個所に展開してもローカル変数が重複しないようにするために用いる．
+ * 新しい変数の型は元の変数の型を引き継ぐか，{@link #fresh(Id, Type)}で指定する．
+ */
+final class Renamer {
+	private final String prefix;
+	private final IdMap<Type> types;
+	private int count;
+
+	Renamer(String prefix, IdMap<Type> types) {
+		this.prefix = prefix;
+		this.types = types;
+		this.count = 0;
+	}
+
+	/**
+	 * 元の変数と同じ型を持つ新しい変数を用意する
+	 */
+	Id fresh(Id original) {
+		return fresh(original, types.get(original));
+	}
+
+	/**
+	 * 指定した型を持つ新しい変数を用意する
+	 */
+	Id fresh(Id original, Type type) {
+		Id id = Id.intern(original, "$" + prefix + count++);
+		types.put(id, type);
+		return id;
+	}
+
+	/**
+	 * 変数をenvに従って置き換え，束縛される変数を付け替えた式を返す
+	 */
+	CcExp copy(CcExp exp, IdMap<CcExp> env) {
+		return switch(exp) {
+		case CcVar(Id id, Location _) ->
+			env.getOrDefault(id, exp);
+		case CcLet(Id var, CcExp boundExp, CcExp body, Location loc) -> {
+			Id renamed = fresh(var);
+			IdMap<CcExp> inner = env.clone();
+			inner.put(var, new CcVar(renamed, loc));
+			yield new CcLet(renamed, copy(boundExp, env), copy(body, inner), loc);
+		}
+		case CcCase(CcExp target, Type targetTy, Seq<CcCaseBranch> branches, Location loc) ->
+			new CcCase(
+					copy(target, env),
+					targetTy,
+					branches.map(branch -> {
+						IdMap<CcExp> inner = env.clone();
+						IcPattern pattern = rename(branch.pattern(), inner);
+						return new CcCaseBranch(pattern, copy(branch.body(), inner), branch.loc());
+					}),
+					loc);
+		default -> exp.mapChildren(child -> copy(child, env));
+		};
+	}
+
+	/**
+	 * パターン中の変数を付け替え，その置き換えをenvに加える
+	 */
+	IcPattern rename(IcPattern pattern, IdMap<CcExp> env) {
+		return switch(pattern) {
+		case Wildcard _ -> pattern;
+		case Var(Id id, Location loc) -> {
+			Id renamed = fresh(id);
+			env.put(id, new CcVar(renamed, loc));
+			yield new Var(renamed, loc);
+		}
+		case Dector(IcVarCtor ctor, Seq<Arg> args, Location loc) ->
+			new Dector(ctor, args.map(arg -> new Arg(rename(arg.pattern(), env), arg.type())), loc);
+		case Record(Seq<RecordField> fields, Location loc) ->
+			new Record(fields.map(field -> new RecordField(field.name(), rename(field.pattern(), env), field.loc())), loc);
+		};
+	}
+}
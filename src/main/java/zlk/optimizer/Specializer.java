@@ -0,0 +1,184 @@
+package zlk.optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import zlk.clcalc.CcExp;
+import zlk.clcalc.CcExp.CcCnst;
+import zlk.clcalc.CcExp.CcDirectApp;
+import zlk.clcalc.CcExp.CcIf;
+import zlk.clcalc.CcExp.CcLet;
+import zlk.clcalc.CcExp.CcMkCls;
+import zlk.clcalc.CcExp.CcVar;
+import zlk.clcalc.CcFunDecl;
+import zlk.clcalc.CcModule;
+import zlk.common.ConstValue;
+import zlk.common.Location;
+import zlk.common.Type;
+import zlk.common.id.Id;
+import zlk.common.id.IdMap;
+import zlk.idcalc.IcPattern;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 型変数を具体的な型で埋めて呼び出される多相なトップレベル関数を，その型に特殊化した複製に置き換える．
+ *
+ * 複製の型は型変数を含まないので，{@code BytecodeGenerator}がI32やBoolをunboxedなまま受け渡すメソッドを作れる．
+ * 複製は関数と型引数の組ごとに1つだけ作り，複製の本体の呼出しも同様に特殊化する．
+ * 複製の大きさの合計は{@link #SIZE_BUDGET}までとする．
+ */
+final class Specializer {
+	static final int SIZE_BUDGET = 2000;
+
+	private final IdMap<CcFunDecl> decls;
+	private final IdMap<Type> types;
+	private final Renamer renamer;
+	private final IdMap<Map<String, Id>> specializations;  // 型引数の組ごとの複製
+	private final SeqBuffer<CcFunDecl> specialized;
+	private int budget;
+
+	private Specializer(CcModule module, IdMap<Type> types, Renamer renamer) {
+		this.decls = module.funcs().fold(IdMap.folder(CcFunDecl::id, decl -> decl));
+		this.types = types;
+		this.renamer = renamer;
+		this.specializations = new IdMap<>();
+		this.specialized = new SeqBuffer<>();
+		this.budget = SIZE_BUDGET;
+	}
+
+	static CcModule specialize(CcModule module, IdMap<Type> types, Renamer renamer) {
+		Specializer specializer = new Specializer(module, types, renamer);
+		Seq<CcFunDecl> funcs = module.funcs().map(decl -> new CcFunDecl(
+				decl.id(),
+				decl.args(),
+				specializer.rewrite(decl.body()),
+				decl.closureImpl(),
+				decl.loc()));
+		return new CcModule(
+				module.name(),
+				module.types(),
+				Seq.concat(funcs, specializer.specialized.toSeq()));
+	}
+
+	private CcExp rewrite(CcExp exp) {
+		CcExp mapped = exp.mapChildren(this::rewrite);
+		if(mapped instanceof CcDirectApp(Id funId, Seq<CcExp> args, Location loc)) {
+			Id target = specializationOf(funId, args);
+			if(target != null) {
+				return new CcDirectApp(target, args, loc);
+			}
+		}
+		return mapped;
+	}
+
+	/**
+	 * 呼出しの型引数が全て具体的な型であれば，対応する複製を返す
+	 */
+	private Id specializationOf(Id funId, Seq<CcExp> args) {
+		CcFunDecl decl = decls.getOrNull(funId);
+		if(decl == null || decl.arity() != args.size()) {
+			return null;
+		}
+		Type funTy = types.get(funId);
+		Seq<String> varNames = funTy.getVarNames();
+		if(varNames.isEmpty()) {
+			return null;
+		}
+
+		Type.BindList binds = bindArgs(funTy, args);
+		if(binds == null) {
+			return null;
+		}
+		SeqBuffer<Type> typeArgs = new SeqBuffer<>();
+		for(String name : varNames) {
+			Type bound = new Type.Var(name).subst(binds);
+			if(!bound.getVarNames().isEmpty()) {
+				return null;
+			}
+			typeArgs.add(bound);
+		}
+
+		String key = typeArgs.toSeq().join(", ");
+		Map<String, Id> cache = specializations.computeIfAbsent(funId, _ -> new HashMap<>());
+		Id existing = cache.get(key);
+		if(existing != null) {
+			return existing;
+		}
+
+		int size = decl.body().size();
+		if(size > budget) {
+			return null;
+		}
+		budget -= size;
+
+		Id specId = Id.intern(funId, "$spec" + cache.size());
+		cache.put(key, specId);
+		types.put(specId, funTy.subst(binds));
+
+		// 局所変数の型の型変数は変数ごとに別々に名付けられていて，シグネチャの型変数とは対応しない．
+		// そこで仮引数の型だけを特殊化したシグネチャから決め，局所変数は元の型のまま受け渡しの箇所で変換させる
+		Seq<Type> paramTys = funTy.subst(binds).flatten();
+		IdMap<CcExp> env = new IdMap<>();
+		Seq<IcPattern> specArgs = decl.args().mapIndexed((i, arg) -> {
+			if(arg instanceof IcPattern.Var(Id id, Location loc)) {
+				Id renamed = renamer.fresh(id, paramTys.at(i));
+				env.put(id, new CcVar(renamed, loc));
+				return new IcPattern.Var(renamed, loc);
+			}
+			return renamer.rename(arg, env);
+		});
+		CcExp specBody = renamer.copy(decl.body(), env);
+		specialized.add(new CcFunDecl(specId, specArgs, rewrite(specBody), false, decl.loc()));
+		return specId;
+	}
+
+	/**
+	 * 型の具体的に分かる実引数から関数の型変数を求める
+	 * @return 型変数の束縛．型が矛盾すればnull
+	 */
+	private Type.BindList bindArgs(Type funTy, Seq<CcExp> args) {
+		Seq<Type> paramTys = funTy.flatten();
+		Type.BindList binds = new Type.BindList();
+		try {
+			for(int i = 0; i < args.size(); i++) {
+				Type argTy = typeOf(args.at(i));
+				if(argTy != null && argTy.getVarNames().isEmpty()) {  // Nilなど多相な値からは決めない
+					paramTys.at(i).bind(argTy, binds);
+				}
+			}
+		} catch(IllegalArgumentException e) {
+			return null;
+		}
+		return binds;
+	}
+
+	/**
+	 * 式の型を求める．分からなければnull
+	 */
+	private Type typeOf(CcExp exp) {
+		return switch(exp) {
+		case CcCnst(ConstValue value, Location _) -> value.type();
+		case CcVar(Id id, Location _) -> types.getOrNull(id);
+		case CcDirectApp(Id funId, Seq<CcExp> args, Location _) -> applied(funId, args);
+		case CcMkCls(Id implId, Seq<CcExp> caps, Location _) -> applied(implId, caps);
+		case CcLet(Id _, CcExp _, CcExp body, Location _) -> typeOf(body);
+		case CcIf(CcExp _, CcExp thenExp, CcExp _, Location _) -> typeOf(thenExp);
+		default -> null;
+		};
+	}
+
+	private Type applied(Id funId, Seq<CcExp> args) {
+		Type funTy = types.getOrNull(funId);
+		if(funTy == null || funTy.flatten().size() <= args.size()) {
+			return args.isEmpty() ? funTy : null;
+		}
+		Type.BindList binds = bindArgs(funTy, args);
+		if(binds == null) {
+			return null;
+		}
+		Type ret = funTy.dropArgs(args.size()).subst(binds);
+		return ret.getVarNames().isEmpty() ? ret : null;
+	}
+
+}
@@ -5,10 +5,10 @@ import static zlk.util.ErrorUtils.todo;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 import zlk.parser.Token.Kind;
 import zlk.util.collection.IntSeqBuffer;
-import zlk.util.collection.SeqBuffer;
 
 /**
  * ソースをトークンのインデントで分離されたブロック構造に変換する
@@ -29,7 +29,12 @@ public final class Lexer {
 	int lineStartIdx;  // 現在の行の先頭位置
 	IndentStyle indentStyle;
 	IntSeqBuffer lineStartIndexes;
-	SeqBuffer<Token> result;
+
+	// トークンの種類のordinalと開始位置，終了位置
+	byte[] kinds;
+	int[] starts;
+	int[] ends;
+	int count;
 
 	public Lexer(String fileName, String src) {
 		this.fileName = fileName;
@@ -45,7 +50,11 @@ public final class Lexer {
 		currentLevel = 0;
 		indentStyle = IndentStyle.UNKNOWN;
 		lineStartIndexes = new IntSeqBuffer();
-		result = new SeqBuffer<>();
+		int capacity = src.length() / 4 + 16;  // 大まかな見積もり．足りなければ伸ばす
+		kinds = new byte[capacity];
+		starts = new int[capacity];
+		ends = new int[capacity];
+		count = 0;
 		Source info = new Source(fileName, src);
 		int srcLength = src.length();
 
@@ -81,15 +90,15 @@ public final class Lexer {
 			int levelDiff = currentLevel - level;
 			if(levelDiff < 0) {
 				for(int i = levelDiff; i < 0; i++) {
-					result.add(new Token(info, Token.Kind.ENDENT, lineStartIdx, idx));
+					add(Kind.ENDENT, lineStartIdx, idx);
 				}
 			}
 			if(levelDiff > 0) {
 				for(int i = levelDiff; i > 0; i--) {
-					result.add(new Token(info, Token.Kind.DEDENT, lineStartIdx, idx));
+					add(Kind.DEDENT, lineStartIdx, idx);
 				}
 			}
-			result.add(new Token(info, Token.Kind.SAMENT, lineStartIdx, idx));
+			add(Kind.SAMENT, lineStartIdx, idx);
 			currentLevel = level;
 
 			// 行内トークンを追加
@@ -112,23 +121,23 @@ public final class Lexer {
 				int start = idx;
 				if(isUpper(c)) {  // UCID
 					while(++idx < srcLength && isIdentifierPart(src.charAt(idx)));
-					result.add(new Token(info, Kind.UCID, start, idx));
+					add(Kind.UCID, start, idx);
 				} else if(isLower(c)) {  // LCID or keyword
 					while(++idx < srcLength && isIdentifierPart(src.charAt(idx)));
-					Kind k = Token.Kind.lookupKeyword(src.substring(start, idx));
-					result.add(new Token(info, k == null ? Kind.LCID : k, start, idx));
+					Kind k = Token.Kind.lookupKeyword(src, start, idx);
+					add(k == null ? Kind.LCID : k, start, idx);
 				} else if(isPunctuator(c)) {  // punctuator
 					Kind k = Token.Kind.lookupPunctuator(src, start);
 					if(k != null) {
 						idx += k.str().length();
-						result.add(new Token(info, k, start, idx));
+						add(k, start, idx);
 					} else {
 						while(++idx < srcLength && isPunctuator(src.charAt(idx)));
-						result.add(new Token(info, Kind.ILL, start, idx));
+						add(Kind.ILL, start, idx);
 					}
 				} else if(isDigit(c)) {  // DIGIT
 					while(++idx < srcLength && isDigit(src.charAt(idx)));
-					result.add(new Token(info, Kind.DIGITS, start, idx));
+					add(Kind.DIGITS, start, idx);
 				} else {
 					todo("unsupported token start char'"+c+"'@"+idx);
 				}
@@ -140,12 +149,25 @@ public final class Lexer {
 		}
 		// 閉じていないブロックを閉じる
 		for (int i = 0; i < currentLevel; i++) {
-			result.add(new Token(info, Token.Kind.DEDENT, idx, idx));
+			add(Kind.DEDENT, idx, idx);
 		}
 		// 共有情報に改行位置を登録
 		info.lineStartIndexes = lineStartIndexes.toArray();
 
-		return new Tokenized(result.toArray(Token[]::new));
+		return new Tokenized(info, kinds, starts, ends, count);
+	}
+
+	private void add(Kind kind, int start, int end) {
+		if(count == kinds.length) {
+			int capacity = count * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+		}
+		kinds[count] = (byte) kind.ordinal();
+		starts[count] = start;
+		ends[count] = end;
+		count++;
 	}
 
 	private static boolean isPrintableAscii(char c) {
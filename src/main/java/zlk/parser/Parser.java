@@ -3,9 +3,11 @@ package zlk.parser;
 import static zlk.parser.Peg.choice;
 import static zlk.parser.Peg.kind;
 import static zlk.parser.Peg.lazy;
+import static zlk.parser.Peg.memo;
 import static zlk.parser.Peg.optional;
 import static zlk.parser.Peg.plus;
 import static zlk.parser.Peg.sequence;
+import static zlk.parser.Peg.skip;
 import static zlk.parser.Peg.star;
 import static zlk.util.ErrorUtils.todo;
 
@@ -22,6 +24,7 @@ import zlk.ast.Module;
 import zlk.ast.Pattern;
 import zlk.common.Location;
 import zlk.common.LocationHolder;
+import zlk.parser.Peg.Unit;
 import zlk.parser.Token.Kind;
 import zlk.util.collection.Seq;
 import zlk.util.collection.SeqBuffer;
@@ -92,15 +95,34 @@ import zlk.util.collection.SeqBuffer;
 public final class Parser {
 
 	public static Module parse(Tokenized src) {
-		Module result = module.parse(src);
-		if(result == null) {
-			todo("error");
+		return parse(src, false);
+	}
+
+	/**
+	 * モジュールを解析する
+	 * @param src ソース
+	 * @param packrat 式やパターンなどの解析結果を記録して再解析を避けるか．トークン数に比例する領域を使う
+	 * @return モジュール
+	 */
+	public static Module parse(Tokenized src, boolean packrat) {
+		if(packrat) {
+			src.enablePackrat();
 		}
-		if(src.hasNext()) {
-			System.err.println(src.restSource());
-			todo("error");
+		try {
+			Module result = compiledModule.parse(src);
+			if(result == null) {
+				todo("error");
+			}
+			if(src.hasNext()) {
+				System.err.println(src.restSource());
+				todo("error");
+			}
+			return result;
+		} finally {
+			if(packrat) {
+				src.releasePackrat();
+			}
 		}
-		return result;
 	}
 
 	public static Module parse(String fileName, String src) {
@@ -111,6 +133,13 @@ public final class Parser {
 		return parse(new Lexer(fileName).lex());
 	}
 
+	/**
+	 * コンパイルせずにコンビネータのままモジュールを解析する．生成したパーサとの比較用
+	 */
+	static Module parseUncompiledForTest(Tokenized src) {
+		return module.parse(src);
+	}
+
 	public static AnType parseTypeForTest(String src) {
 		Tokenized tokens = new Lexer("TypeForTest.zlk", src).lex();
 		SAMENT.parse(tokens);
@@ -199,29 +228,29 @@ public final class Parser {
 		return result.toSeq();
 	}
 
-	static final Peg<Token> ENDENT = kind(Kind.ENDENT);
-	static final Peg<Token> DEDENT = kind(Kind.DEDENT);
-	static final Peg<Token> SAMENT = kind(Kind.SAMENT);
+	static final Peg<Unit> ENDENT = skip(Kind.ENDENT);
+	static final Peg<Unit> DEDENT = skip(Kind.DEDENT);
+	static final Peg<Unit> SAMENT = skip(Kind.SAMENT);
 
-	static final Peg<Token> ARROW = kind(Kind.ARROW);
-	static final Peg<Token> BAR = kind(Kind.BAR);
+	static final Peg<Unit> ARROW = skip(Kind.ARROW);
+	static final Peg<Unit> BAR = skip(Kind.BAR);
 	static final Peg<Token> CASE = kind(Kind.CASE);
-	static final Peg<Token> COMMA = kind(Kind.COMMA);
-	static final Peg<Token> COLON = kind(Kind.COLON);
-	static final Peg<Token> DOT = kind(Kind.DOT);
-	static final Peg<Token> ELSE = kind(Kind.ELSE);
-	static final Peg<Token> EQUAL = kind(Kind.EQUAL);
+	static final Peg<Unit> COMMA = skip(Kind.COMMA);
+	static final Peg<Unit> COLON = skip(Kind.COLON);
+	static final Peg<Unit> DOT = skip(Kind.DOT);
+	static final Peg<Unit> ELSE = skip(Kind.ELSE);
+	static final Peg<Unit> EQUAL = skip(Kind.EQUAL);
 	static final Peg<Token> IF = kind(Kind.IF);
-	static final Peg<Token> IN = kind(Kind.IN);
+	static final Peg<Unit> IN = skip(Kind.IN);
 	static final Peg<Token> LAMBDA = kind(Kind.LAMBDA);
 	static final Peg<Token> LBRACE = kind(Kind.LBRACE);
 	static final Peg<Token> LET = kind(Kind.LET);
 	static final Peg<Token> LPAREN = kind(Kind.LPAREN);
-	static final Peg<Token> MODULE = kind(Kind.MODULE);
-	static final Peg<Token> OF = kind(Kind.OF);
+	static final Peg<Unit> MODULE = skip(Kind.MODULE);
+	static final Peg<Unit> OF = skip(Kind.OF);
 	static final Peg<Token> RBRACE = kind(Kind.RBRACE);
 	static final Peg<Token> RPAREN = kind(Kind.RPAREN);
-	static final Peg<Token> THEN = kind(Kind.THEN);
+	static final Peg<Unit> THEN = skip(Kind.THEN);
 	static final Peg<Token> TYPE = kind(Kind.TYPE);
 	static final Peg<Token> WILDCARD = kind(Kind.WILDCARD);
 
@@ -293,7 +322,7 @@ public final class Parser {
 			recordType,
 			parenType);
 
-	static final Peg<AnType> type = sequence(funTyArg, star(sequence(ARROW, funTyArg, (_, t) -> t)),
+	static final Peg<AnType> type = memo(sequence(funTyArg, star(sequence(ARROW, funTyArg, (_, t) -> t)),
 			(hd, tl) -> {
 				if(tl.size() == 0) {
 					return hd;
@@ -303,7 +332,7 @@ public final class Parser {
 					result = new AnType.Arrow(ty, result, locRange(ty, result));
 				}
 				return new AnType.Arrow(hd, result, locRange(hd, result));
-			});
+			}));
 
 	private static Peg<AnType> type() {
 		return type;
@@ -339,10 +368,10 @@ public final class Parser {
 					(s, pat, e) -> pat.updateLoc(locRange(s, e))),
 			recordPattern);
 
-	static final Peg<Pattern> pattern = choice(
+	static final Peg<Pattern> pattern = memo(choice(
 			sequence(ctorHead, star(aPattern),
 					(h, args) -> new Pattern.Ctor(h.str(), args, locRange(h, args))),
-			aPattern);
+			aPattern));
 
 	private static Peg<Pattern> pattern() {
 		return pattern;
@@ -388,7 +417,7 @@ public final class Parser {
 	 *                    | <caseExp>
 	 *                    | <panicExp>
 	 */
-	static final Peg<Exp> exp_ = lazy(() -> exp());
+	static final Peg<Exp> exp_ = memo(lazy(() -> exp()));
 
 	static final Peg<Exp.Cnst> literal =
 			DIGITS.map(t -> new Exp.Cnst(Integer.parseInt(t.str()), t.loc()));
@@ -419,7 +448,7 @@ public final class Parser {
 
 	static final Peg<Exp> recordExp = choice(recordUpdate, recordLiteral);
 
-	static final Peg<Exp> aExp = choice(
+	static final Peg<Exp> aExp = memo(choice(
 			literal,
 			LCID.map(t -> new Exp.Var(t.str(), t.loc())),
 			ctorHead.map(t -> new Exp.Var(t.str(), t.loc())),
@@ -427,7 +456,7 @@ public final class Parser {
 					LPAREN, exp_, RPAREN,
 					(s, exp, e) -> exp.updateLoc(locRange(s, e))),
 			recordExp,
-			panicAExp);
+			panicAExp));
 
 	static final Peg<Token> memberSuffix = sequence(DOT, LCID, (_, field) -> field);
 
@@ -592,4 +621,7 @@ public final class Parser {
 			sequence(SAMENT, MODULE, UCID, (_, _, name) -> name.str()),
 			star(sequence(SAMENT, topDecl, (_, d) -> d)),
 			(name, decls) -> new Module(name, decls));
+
+	// 文法全体ができてからコンパイルする
+	static final Peg<Module> compiledModule = PegCompiler.compile(module);
 }
@@ -1,11 +1,15 @@
 package zlk.parser;
 
+import java.util.EnumSet;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import zlk.parser.Token.Kind;
 import zlk.util.collection.Seq;
 import zlk.util.collection.SeqBuffer;
 
@@ -35,6 +39,89 @@ public abstract class Peg<T> {
 	 */
 	public abstract T parse(Tokenized src);
 
+	/**
+	 * 解析が成功するときに最初に読むトークンの種類
+	 * @param kinds 最初に読むことがあるトークンの種類
+	 * @param nullable トークンを読まずに成功することがあるか
+	 */
+	record First(Set<Kind> kinds, boolean nullable) {
+		static First sequence(Peg<?>... ps) {
+			Set<Kind> kinds = EnumSet.noneOf(Kind.class);
+			for(Peg<?> p : ps) {
+				First first = p.first();
+				if(first == null) {
+					return null;
+				}
+				kinds.addAll(first.kinds);
+				if(!first.nullable) {
+					return new First(kinds, false);
+				}
+			}
+			return new First(kinds, true);
+		}
+
+		static First choice(Peg<?>... ps) {
+			Set<Kind> kinds = EnumSet.noneOf(Kind.class);
+			boolean nullable = false;
+			for(Peg<?> p : ps) {
+				First first = p.first();
+				if(first == null) {
+					return null;
+				}
+				kinds.addAll(first.kinds);
+				nullable |= first.nullable;
+			}
+			return new First(kinds, nullable);
+		}
+
+		First orEmpty() {
+			return new First(kinds, true);
+		}
+	}
+
+	/**
+	 * 解析が成功するときに最初に読むトークンの種類を返す．
+	 * 文法の構築中は参照先が決まっていないことがあるので，解析を始めてから呼ぶ．
+	 * @return 最初に読むトークンの種類（分からなければnull）
+	 */
+	First first() {
+		return null;
+	}
+
+	/**
+	 * 文法をコンパイルするときに辿る合成の構造
+	 * @see PegCompiler
+	 */
+	sealed interface Node {
+		record Match(Kind kind) implements Node {}
+		record Skip(Kind kind) implements Node {}
+		record MatchAny(Set<Kind> kinds) implements Node {}
+		record Mapped(Peg<?> p, Function<?, ?> mapper) implements Node {}
+		record Deferred(Peg<?> p) implements Node {}
+		record Memo(int rule, Peg<?> p) implements Node {}
+		record Sequence(Seq<Peg<?>> ps, Object combiner) implements Node {}
+		record Choice(Seq<Peg<?>> candidates) implements Node {}
+		record Star(Peg<?> p) implements Node {}
+		record Plus(Peg<?> p) implements Node {}
+		record Option(Peg<?> p) implements Node {}
+		record And(Peg<?> p) implements Node {}
+		record Not(Peg<?> p) implements Node {}
+	}
+
+	/**
+	 * 合成の構造を返す．
+	 * @return 合成の構造（構造を持たずparseを呼ぶしかなければnull）
+	 */
+	Node node() {
+		return null;
+	}
+
+	// memoで包んだ規則の番号
+	private static final AtomicInteger memoRules = new AtomicInteger();
+
+	// 失敗を記録するための値
+	static final Object FAILED = new Object();
+
 	public <R> Peg<R> map(Function<? super T, ? extends R> mapper) {
 		return new Peg<>() {
 			@Override
@@ -45,6 +132,16 @@ public abstract class Peg<T> {
 				}
 				return mapper.apply(t);
 			}
+
+			@Override
+			First first() {
+				return Peg.this.first();
+			}
+
+			@Override
+			Node node() {
+				return new Node.Mapped(Peg.this, mapper);
+			}
 		};
 	}
 
@@ -53,6 +150,7 @@ public abstract class Peg<T> {
 	) {
 		return new Peg<>() {
 			Peg<? extends T> peg = null;
+			boolean inFirst = false;
 
 			@Override
 			public T parse(Tokenized src) {
@@ -62,6 +160,71 @@ public abstract class Peg<T> {
 				return peg.parse(src);
 			}
 
+			@Override
+			First first() {
+				if(inFirst) {  // 再帰する規則
+					return null;
+				}
+				if(peg == null) {
+					peg = supplier.get();
+				}
+				inFirst = true;
+				try {
+					return peg.first();
+				} finally {
+					inFirst = false;
+				}
+			}
+
+			@Override
+			Node node() {
+				if(peg == null) {
+					peg = supplier.get();
+				}
+				return new Node.Deferred(peg);
+			}
+		};
+	}
+
+	/**
+	 * ソースがpackratモードのとき，位置ごとに解析結果を記録して再解析を避けるパーサを返す．
+	 * 同じ位置から何度も試される規則を包むと，バックトラックしても解析時間がトークン数に比例する．
+	 * @param p 記録するパーサ
+	 * @return 記録するパーサ
+	 * @see Tokenized#enablePackrat()
+	 */
+	public static <T> Peg<T> memo(Peg<T> p) {
+		int rule = memoRules.getAndIncrement();
+		return new Peg<>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public T parse(Tokenized src) {
+				if(!src.isPackrat()) {
+					return p.parse(src);
+				}
+				int start = src.mark();
+				Object memoized = src.memoized(rule, start);
+				if(memoized == FAILED) {
+					return null;
+				}
+				if(memoized != null) {
+					src.jump(src.memoizedEnd(rule, start));
+					return (T) memoized;
+				}
+				T r = p.parse(src);
+				src.memoize(rule, start, r == null ? FAILED : r, src.mark());
+				return r;
+			}
+
+			@Override
+			First first() {
+				return p.first();
+			}
+
+			@Override
+			Node node() {
+				return new Node.Memo(rule, p);
+			}
 		};
 	}
 
@@ -69,11 +232,50 @@ public abstract class Peg<T> {
 		return new Peg<>() {
 			@Override
 			public Token parse(Tokenized src) {
-				if(src.hasNext() && src.peek().kind == kind) {
+				if(src.hasNext() && src.peekKind() == kind) {
 					return src.next();
 				}
 				return null;
 			}
+
+			@Override
+			First first() {
+				return new First(EnumSet.of(kind), false);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Match(kind);
+			}
+		};
+	}
+
+	/**
+	 * 指定した種類のトークンを読み飛ばすパーサを返す．
+	 * 区切りやインデントなど結果を使わないトークン用で，{@link Token}を作らない．
+	 * @param kind トークンの種類
+	 * @return 読み飛ばすパーサ
+	 */
+	public static Peg<Unit> skip(Token.Kind kind) {
+		return new Peg<>() {
+			@Override
+			public Unit parse(Tokenized src) {
+				if(src.hasNext() && src.peekKind() == kind) {
+					src.skip();
+					return Unit.INSTANCE;
+				}
+				return null;
+			}
+
+			@Override
+			First first() {
+				return new First(EnumSet.of(kind), false);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Skip(kind);
+			}
 		};
 	}
 
@@ -81,11 +283,27 @@ public abstract class Peg<T> {
 		return new Peg<>() {
 			@Override
 			public Token parse(Tokenized src) {
-				if(src.hasNext() && predicate.test(src.peek().kind)) {
+				if(src.hasNext() && predicate.test(src.peekKind())) {
 					return src.next();
 				}
 				return null;
 			}
+
+			@Override
+			First first() {
+				Set<Kind> kinds = EnumSet.noneOf(Kind.class);
+				for(Kind kind : Kind.values()) {
+					if(predicate.test(kind)) {
+						kinds.add(kind);
+					}
+				}
+				return new First(kinds, false);
+			}
+
+			@Override
+			Node node() {
+				return new Node.MatchAny(first().kinds());
+			}
 		};
 	}
 
@@ -106,19 +324,62 @@ public abstract class Peg<T> {
 				}
 				return combiner.apply(r1, r2);
 			}
+
+			@Override
+			First first() {
+				return First.sequence(p1, p2);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Sequence(Seq.of(p1, p2), combiner);
+			}
 		};
 	}
 
+	static final int END_OF_SOURCE = Kind.values().length;
+
+	/**
+	 * 次のトークンの種類ごとに，成功する可能性のある候補を元の順で並べた表を作る．
+	 * 最初に読むトークンの種類が分からない候補とトークンを読まずに成功しうる候補は常に試す．
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Peg<? extends T>[][] dispatchTable(Peg<? extends T>[] candidates) {
+		First[] firsts = new First[candidates.length];
+		for(int i = 0; i < candidates.length; i++) {
+			firsts[i] = candidates[i].first();
+		}
+		Peg<? extends T>[][] table = new Peg[END_OF_SOURCE + 1][];
+		for(int k = 0; k <= END_OF_SOURCE; k++) {
+			SeqBuffer<Peg<? extends T>> tried = new SeqBuffer<>();
+			for(int i = 0; i < candidates.length; i++) {
+				First first = firsts[i];
+				if(first == null || first.nullable() || (k < END_OF_SOURCE && first.kinds().contains(Kind.values()[k]))) {
+					tried.add(candidates[i]);
+				}
+			}
+			table[k] = tried.toArray(Peg[]::new);
+		}
+		return table;
+	}
+
 	@SuppressWarnings("unchecked")
 	private static <T> Peg<T> choiceBase(
 			Peg<? extends T>... candidates
 	) {
 		return new Peg<>() {
+			// 次のトークンの種類ごとに試す候補．最後はソースの終わり用
+			Peg<? extends T>[][] table = null;
+
 			@Override
 			public T parse(Tokenized src) {
+				if(table == null) {
+					table = dispatchTable(candidates);
+				}
+				Peg<? extends T>[] tried = table[src.hasNext() ? src.peekKindOrdinal() : END_OF_SOURCE];
 				int start = src.mark();
 				T r = null;
-				for(Peg<? extends T> p : candidates) {
+				for(Peg<? extends T> p : tried) {
 					r = p.parse(src);
 					if(r != null) {
 						return r;
@@ -127,6 +388,16 @@ public abstract class Peg<T> {
 				}
 				return null;
 			}
+
+			@Override
+			First first() {
+				return First.choice(candidates);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Choice(Seq.<Peg<?>>of(candidates));
+			}
 		};
 	}
 
@@ -195,6 +466,17 @@ public abstract class Peg<T> {
 					result.add(r);
 				}
 			}
+
+			@Override
+			First first() {
+				First first = p.first();
+				return first == null ? null : first.orEmpty();
+			}
+
+			@Override
+			Node node() {
+				return new Node.Star(p);
+			}
 		};
 	}
 
@@ -218,6 +500,16 @@ public abstract class Peg<T> {
 					result.add(r);
 				}
 			}
+
+			@Override
+			First first() {
+				return p.first();
+			}
+
+			@Override
+			Node node() {
+				return new Node.Plus(p);
+			}
 		};
 	}
 
@@ -233,6 +525,17 @@ public abstract class Peg<T> {
 				}
 				return Optional.of(r);
 			}
+
+			@Override
+			First first() {
+				First first = p.first();
+				return first == null ? null : first.orEmpty();
+			}
+
+			@Override
+			Node node() {
+				return new Node.Option(p);
+			}
 		};
 	}
 
@@ -247,6 +550,11 @@ public abstract class Peg<T> {
 				}
 				return null;
 			}
+
+			@Override
+			Node node() {
+				return new Node.And(p);
+			}
 		};
 	}
 
@@ -261,6 +569,11 @@ public abstract class Peg<T> {
 				}
 				return null;
 			}
+
+			@Override
+			Node node() {
+				return new Node.Not(p);
+			}
 		};
 	}
 	public static <R, T1, T2, T3> Peg<R> sequence(
@@ -285,6 +598,16 @@ public abstract class Peg<T> {
 				}
 				return combiner.apply(r1, r2, r3);
 			}
+
+			@Override
+			First first() {
+				return First.sequence(p1, p2, p3);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Sequence(Seq.of(p1, p2, p3), combiner);
+			}
 		};
 	}
 	public static <R, T1, T2, T3, T4> Peg<R> sequence(
@@ -314,6 +637,16 @@ public abstract class Peg<T> {
 				}
 				return combiner.apply(r1, r2, r3, r4);
 			}
+
+			@Override
+			First first() {
+				return First.sequence(p1, p2, p3, p4);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Sequence(Seq.of(p1, p2, p3, p4), combiner);
+			}
 		};
 	}
 
@@ -349,6 +682,16 @@ public abstract class Peg<T> {
 				}
 				return combiner.apply(r1, r2, r3, r4, r5);
 			}
+
+			@Override
+			First first() {
+				return First.sequence(p1, p2, p3, p4, p5);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Sequence(Seq.of(p1, p2, p3, p4, p5), combiner);
+			}
 		};
 	}
 
@@ -389,6 +732,16 @@ public abstract class Peg<T> {
 				}
 				return combiner.apply(r1, r2, r3, r4, r5, r6);
 			}
+
+			@Override
+			First first() {
+				return First.sequence(p1, p2, p3, p4, p5, p6);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Sequence(Seq.of(p1, p2, p3, p4, p5, p6), combiner);
+			}
 		};
 	}
 
@@ -434,6 +787,16 @@ public abstract class Peg<T> {
 				}
 				return combiner.apply(r1, r2, r3, r4, r5, r6, r7);
 			}
+
+			@Override
+			First first() {
+				return First.sequence(p1, p2, p3, p4, p5, p6, p7);
+			}
+
+			@Override
+			Node node() {
+				return new Node.Sequence(Seq.of(p1, p2, p3, p4, p5, p6, p7), combiner);
+			}
 		};
 	}
 }
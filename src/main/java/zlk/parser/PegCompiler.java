@@ -0,0 +1,449 @@
+package zlk.parser;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import zlk.bytecodegen.BytecodeGenerator;
+import zlk.parser.Peg.Node;
+import zlk.parser.Token.Kind;
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * {@link Peg}の合成を辿り，規則ごとに静的メソッドを持つパーサクラスを生成する．
+ *
+ * 合成子の仮想呼出しは生成したメソッドの直接呼出しになり，choiceは次のトークンの種類によるtableswitchになる．
+ * mapやsequenceに渡した関数と，構造の分からない{@link Peg}は定数表から取り出して呼ぶ．
+ * 生成するクラスはこのパッケージのhidden classなので，{@link Tokenized}のpackrat用の記録もそのまま使う．
+ *
+ * <pre>{@code
+ * final class CompiledPeg extends Peg {
+ *     static Object[] constants;
+ *
+ *     public Object parse(Tokenized src) { return rule0(src); }
+ *
+ *     private static Object rule0(Tokenized src) { ... }
+ *     private static Object rule1(Tokenized src) { ... }
+ *     ...
+ * }
+ * }</pre>
+ */
+final class PegCompiler {
+	private static final String CLASS_NAME = "zlk/parser/CompiledPeg";
+	private static final String PEG = "zlk/parser/Peg";
+	private static final String UNIT = "zlk/parser/Peg$Unit";
+	private static final String TOKENIZED = "zlk/parser/Tokenized";
+	private static final String TOKEN = "zlk/parser/Token";
+	private static final String SEQ_BUFFER = "zlk/util/collection/SeqBuffer";
+	private static final String OPTIONAL = "java/util/Optional";
+	private static final String OBJECT = "java/lang/Object";
+
+	private static final String OBJECT_DESC = "L" + OBJECT + ";";
+	private static final String RULE_DESC = "(L" + TOKENIZED + ";)" + OBJECT_DESC;
+	private static final String CONSTANTS = "constants";
+
+	private final ClassWriter cw;
+	private final Map<Peg<?>, String> names = new IdentityHashMap<>();
+	private final Deque<Peg<?>> pending = new ArrayDeque<>();
+	private final SeqBuffer<Object> constants = new SeqBuffer<>();
+
+	private PegCompiler() {
+		this.cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES) {
+			// 合流する値はどれもObjectとして扱う
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				return OBJECT;
+			}
+		};
+	}
+
+	/**
+	 * パーサをコンパイルする．
+	 * 文法の遅延参照を解決するので，文法全体が構築されてから呼ぶ．
+	 * @param root 開始規則
+	 * @return rootと同じ言語を受理して同じ結果を返すパーサ
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Peg<T> compile(Peg<T> root) {
+		PegCompiler compiler = new PegCompiler();
+		byte[] bytes = compiler.genClass(root);
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+			Class<?> type = lookup.lookupClass();
+			lookup.findStaticVarHandle(type, CONSTANTS, Object[].class)
+					.set(compiler.constants.toArray(Object[]::new));
+			return (Peg<T>) type.getDeclaredConstructor().newInstance();
+		} catch(ReflectiveOperationException e) {
+			throw new IllegalStateException("cannot compile grammar", e);
+		}
+	}
+
+	private byte[] genClass(Peg<?> root) {
+		cw.visit(
+				BytecodeGenerator.OPCODE_VERSION,
+				Opcodes.ACC_FINAL + Opcodes.ACC_SUPER + Opcodes.ACC_SYNTHETIC,
+				CLASS_NAME,
+				null,
+				PEG,
+				null);
+		cw.visitField(Opcodes.ACC_STATIC, CONSTANTS, "[" + OBJECT_DESC, null, null).visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, PEG, "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		String rootName = nameOf(root);
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "parse", RULE_DESC, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NAME, rootName, RULE_DESC, false);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		while(!pending.isEmpty()) {
+			Peg<?> peg = pending.poll();
+			genRule(names.get(peg), peg);
+		}
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * 規則のメソッド名を返す．まだ生成していなければ生成の予定に加える
+	 */
+	private String nameOf(Peg<?> peg) {
+		while(peg.node() instanceof Node.Deferred(Peg<?> target)) {
+			peg = target;
+		}
+		String name = names.get(peg);
+		if(name == null) {
+			name = "rule" + names.size();
+			names.put(peg, name);
+			pending.add(peg);
+		}
+		return name;
+	}
+
+	private void genRule(String name, Peg<?> peg) {
+		MethodVisitor mv = cw.visitMethod(
+				Opcodes.ACC_PRIVATE + Opcodes.ACC_STATIC, name, RULE_DESC, null, null);
+		mv.visitCode();
+		switch(peg.node()) {
+		case null -> {
+			loadConstant(mv, peg, PEG);
+			mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, PEG, "parse", RULE_DESC, false);
+			mv.visitInsn(Opcodes.ARETURN);
+		}
+		case Node.Match(Kind kind) -> genMatch(mv, Seq.of(kind), true);
+		case Node.Skip(Kind kind) -> genMatch(mv, Seq.of(kind), false);
+		case Node.MatchAny(var kinds) -> genMatch(mv, Seq.from(kinds), true);
+		case Node.Mapped(Peg<?> p, var mapper) -> genMapped(mv, p, mapper);
+		case Node.Deferred _ -> throw new AssertionError(peg);  // nameOfで解決済み
+		case Node.Memo(int rule, Peg<?> p) -> genMemo(mv, rule, p);
+		case Node.Sequence(Seq<Peg<?>> ps, Object combiner) -> genSequence(mv, ps, combiner);
+		case Node.Choice(Seq<Peg<?>> candidates) -> genChoice(mv, candidates);
+		case Node.Star(Peg<?> p) -> genRepeat(mv, p, false);
+		case Node.Plus(Peg<?> p) -> genRepeat(mv, p, true);
+		case Node.Option(Peg<?> p) -> genOption(mv, p);
+		case Node.And(Peg<?> p) -> genPredicate(mv, p, true);
+		case Node.Not(Peg<?> p) -> genPredicate(mv, p, false);
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * トークンの種類を調べて読む．keepでなければトークンを作らずUnitを返す
+	 */
+	private void genMatch(MethodVisitor mv, Seq<Kind> kinds, boolean keep) {
+		Label fail = new Label();
+		Label accept = new Label();
+		genNextOrdinal(mv, fail);
+		int[] keys = new int[kinds.size()];
+		kinds.forEachIndexed((i, kind) -> keys[i] = kind.ordinal());
+		Arrays.sort(keys);
+		Label[] labels = new Label[keys.length];
+		Arrays.fill(labels, accept);
+		mv.visitLookupSwitchInsn(fail, keys, labels);
+		mv.visitLabel(accept);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		if(keep) {
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "next", "()L" + TOKEN + ";", false);
+		} else {
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "skip", "()V", false);
+			mv.visitFieldInsn(Opcodes.GETSTATIC, UNIT, "INSTANCE", "L" + UNIT + ";");
+		}
+		mv.visitInsn(Opcodes.ARETURN);
+		genFail(mv, fail);
+	}
+
+	private void genMapped(MethodVisitor mv, Peg<?> p, Object mapper) {
+		Label fail = new Label();
+		callRule(mv, p);
+		mv.visitVarInsn(Opcodes.ASTORE, 1);
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitJumpInsn(Opcodes.IFNULL, fail);
+		loadConstant(mv, mapper, "java/util/function/Function");
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, "java/util/function/Function", "apply",
+				"(" + OBJECT_DESC + ")" + OBJECT_DESC, true);
+		mv.visitInsn(Opcodes.ARETURN);
+		genFail(mv, fail);
+	}
+
+	private void genMemo(MethodVisitor mv, int rule, Peg<?> p) {
+		Label packrat = new Label();
+		Label notFailed = new Label();
+		Label miss = new Label();
+		Label memoize = new Label();
+
+		// packratモードでなければそのまま解析する
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "isPackrat", "()Z", false);
+		mv.visitJumpInsn(Opcodes.IFNE, packrat);
+		callRule(mv, p);
+		mv.visitInsn(Opcodes.ARETURN);
+
+		// 記録があれば使う
+		mv.visitLabel(packrat);
+		genMark(mv, 1);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		pushInt(mv, rule);
+		mv.visitVarInsn(Opcodes.ILOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "memoized", "(II)" + OBJECT_DESC, false);
+		mv.visitVarInsn(Opcodes.ASTORE, 2);
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		mv.visitFieldInsn(Opcodes.GETSTATIC, PEG, "FAILED", OBJECT_DESC);
+		mv.visitJumpInsn(Opcodes.IF_ACMPNE, notFailed);
+		mv.visitInsn(Opcodes.ACONST_NULL);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitLabel(notFailed);
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		mv.visitJumpInsn(Opcodes.IFNULL, miss);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		pushInt(mv, rule);
+		mv.visitVarInsn(Opcodes.ILOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "memoizedEnd", "(II)I", false);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "jump", "(I)V", false);
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		mv.visitInsn(Opcodes.ARETURN);
+
+		// 解析して記録する
+		mv.visitLabel(miss);
+		callRule(mv, p);
+		mv.visitVarInsn(Opcodes.ASTORE, 3);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		pushInt(mv, rule);
+		mv.visitVarInsn(Opcodes.ILOAD, 1);
+		mv.visitVarInsn(Opcodes.ALOAD, 3);
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitJumpInsn(Opcodes.IFNONNULL, memoize);
+		mv.visitInsn(Opcodes.POP);
+		mv.visitFieldInsn(Opcodes.GETSTATIC, PEG, "FAILED", OBJECT_DESC);
+		mv.visitLabel(memoize);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "mark", "()I", false);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "memoize", "(II" + OBJECT_DESC + "I)V", false);
+		mv.visitVarInsn(Opcodes.ALOAD, 3);
+		mv.visitInsn(Opcodes.ARETURN);
+	}
+
+	private void genSequence(MethodVisitor mv, Seq<Peg<?>> ps, Object combiner) {
+		Label fail = new Label();
+		ps.forEachIndexed((i, p) -> {
+			callRule(mv, p);
+			mv.visitVarInsn(Opcodes.ASTORE, i + 1);
+			mv.visitVarInsn(Opcodes.ALOAD, i + 1);
+			mv.visitJumpInsn(Opcodes.IFNULL, fail);
+		});
+		String combinerType = ps.size() == 2 ? "java/util/function/BiFunction" : "zlk/parser/Function" + ps.size();
+		loadConstant(mv, combiner, combinerType);
+		for(int i = 0; i < ps.size(); i++) {
+			mv.visitVarInsn(Opcodes.ALOAD, i + 1);
+		}
+		mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, combinerType, "apply",
+				"(" + OBJECT_DESC.repeat(ps.size()) + ")" + OBJECT_DESC, true);
+		mv.visitInsn(Opcodes.ARETURN);
+		genFail(mv, fail);
+	}
+
+	/**
+	 * 次のトークンの種類でtableswitchし，成功しうる候補だけを順に試す
+	 */
+	private void genChoice(MethodVisitor mv, Seq<Peg<?>> candidates) {
+		Label fail = new Label();
+		Label endOfSource = new Label();
+		Label dispatch = new Label();
+		Label success = new Label();
+
+		genMark(mv, 1);
+		genNextOrdinal(mv, endOfSource);
+		mv.visitJumpInsn(Opcodes.GOTO, dispatch);
+		mv.visitLabel(endOfSource);
+		pushInt(mv, Peg.END_OF_SOURCE);
+		mv.visitLabel(dispatch);
+
+		// 試す候補が同じ種類は同じ処理へ飛ばす
+		Peg<?>[] array = new Peg<?>[candidates.size()];
+		candidates.forEachIndexed((i, candidate) -> array[i] = candidate);
+		Peg<?>[][] table = Peg.dispatchTable(array);
+		Map<List<Peg<?>>, Label> groups = new LinkedHashMap<>();
+		Label[] labels = new Label[table.length];
+		for(int k = 0; k < table.length; k++) {
+			labels[k] = groups.computeIfAbsent(List.of(table[k]), _ -> new Label());
+		}
+		mv.visitTableSwitchInsn(0, table.length - 1, fail, labels);
+
+		groups.forEach((tried, label) -> {
+			mv.visitLabel(label);
+			for(Peg<?> p : tried) {
+				callRule(mv, p);
+				mv.visitInsn(Opcodes.DUP);
+				mv.visitJumpInsn(Opcodes.IFNONNULL, success);
+				mv.visitInsn(Opcodes.POP);
+				genJump(mv, 1);
+			}
+			mv.visitJumpInsn(Opcodes.GOTO, fail);
+		});
+
+		mv.visitLabel(success);
+		mv.visitInsn(Opcodes.ARETURN);
+		genFail(mv, fail);
+	}
+
+	private void genRepeat(MethodVisitor mv, Peg<?> p, boolean atLeastOne) {
+		Label fail = new Label();
+		Label loop = new Label();
+		Label add = new Label();
+
+		mv.visitTypeInsn(Opcodes.NEW, SEQ_BUFFER);
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, SEQ_BUFFER, "<init>", "()V", false);
+		mv.visitVarInsn(Opcodes.ASTORE, 1);
+		if(atLeastOne) {
+			callRule(mv, p);
+			mv.visitVarInsn(Opcodes.ASTORE, 3);
+			mv.visitVarInsn(Opcodes.ALOAD, 3);
+			mv.visitJumpInsn(Opcodes.IFNULL, fail);
+			mv.visitJumpInsn(Opcodes.GOTO, add);
+		}
+
+		mv.visitLabel(loop);
+		genMark(mv, 2);
+		callRule(mv, p);
+		mv.visitVarInsn(Opcodes.ASTORE, 3);
+		mv.visitVarInsn(Opcodes.ALOAD, 3);
+		mv.visitJumpInsn(Opcodes.IFNONNULL, add);
+		genJump(mv, 2);
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SEQ_BUFFER, "toSeq", "()Lzlk/util/collection/Seq;", false);
+		mv.visitInsn(Opcodes.ARETURN);
+
+		mv.visitLabel(add);
+		mv.visitVarInsn(Opcodes.ALOAD, 1);
+		mv.visitVarInsn(Opcodes.ALOAD, 3);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, SEQ_BUFFER, "add", "(" + OBJECT_DESC + ")V", false);
+		mv.visitJumpInsn(Opcodes.GOTO, loop);
+		genFail(mv, fail);
+	}
+
+	private void genOption(MethodVisitor mv, Peg<?> p) {
+		Label some = new Label();
+		genMark(mv, 1);
+		callRule(mv, p);
+		mv.visitVarInsn(Opcodes.ASTORE, 2);
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		mv.visitJumpInsn(Opcodes.IFNONNULL, some);
+		genJump(mv, 1);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, OPTIONAL, "empty", "()L" + OPTIONAL + ";", false);
+		mv.visitInsn(Opcodes.ARETURN);
+		mv.visitLabel(some);
+		mv.visitVarInsn(Opcodes.ALOAD, 2);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, OPTIONAL, "of", "(" + OBJECT_DESC + ")L" + OPTIONAL + ";", false);
+		mv.visitInsn(Opcodes.ARETURN);
+	}
+
+	private void genPredicate(MethodVisitor mv, Peg<?> p, boolean positive) {
+		Label fail = new Label();
+		genMark(mv, 1);
+		callRule(mv, p);
+		mv.visitJumpInsn(positive ? Opcodes.IFNULL : Opcodes.IFNONNULL, fail);
+		genJump(mv, 1);
+		mv.visitFieldInsn(Opcodes.GETSTATIC, UNIT, "INSTANCE", "L" + UNIT + ";");
+		mv.visitInsn(Opcodes.ARETURN);
+		genFail(mv, fail);
+	}
+
+	/**
+	 * 次のトークンの種類の番号を積む．トークンが無ければendOfSourceへ飛ぶ
+	 */
+	private static void genNextOrdinal(MethodVisitor mv, Label endOfSource) {
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "hasNext", "()Z", false);
+		mv.visitJumpInsn(Opcodes.IFEQ, endOfSource);
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "peekKindOrdinal", "()I", false);
+	}
+
+	private static void genMark(MethodVisitor mv, int local) {
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "mark", "()I", false);
+		mv.visitVarInsn(Opcodes.ISTORE, local);
+	}
+
+	private static void genJump(MethodVisitor mv, int local) {
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitVarInsn(Opcodes.ILOAD, local);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, TOKENIZED, "jump", "(I)V", false);
+	}
+
+	private static void genFail(MethodVisitor mv, Label fail) {
+		mv.visitLabel(fail);
+		mv.visitInsn(Opcodes.ACONST_NULL);
+		mv.visitInsn(Opcodes.ARETURN);
+	}
+
+	private void callRule(MethodVisitor mv, Peg<?> p) {
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, CLASS_NAME, nameOf(p), RULE_DESC, false);
+	}
+
+	private void loadConstant(MethodVisitor mv, Object value, String type) {
+		mv.visitFieldInsn(Opcodes.GETSTATIC, CLASS_NAME, CONSTANTS, "[" + OBJECT_DESC);
+		pushInt(mv, constants.size());
+		mv.visitInsn(Opcodes.AALOAD);
+		mv.visitTypeInsn(Opcodes.CHECKCAST, type);
+		constants.add(value);
+	}
+
+	private static void pushInt(MethodVisitor mv, int value) {
+		if(-1 <= value && value <= 5) {
+			mv.visitInsn(Opcodes.ICONST_0 + value);
+		} else if(Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		} else if(Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+			mv.visitIntInsn(Opcodes.SIPUSH, value);
+		} else {
+			mv.visitLdcInsn(value);
+		}
+	}
+}
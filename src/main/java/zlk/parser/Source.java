@@ -9,11 +9,67 @@ public final class Source {
 	public final String content;
 	int[] lineStartIndexes = null;
 
+	// 切り出した文字列の表．同じ綴りには同じ文字列を返す
+	private String[] interned = new String[64];
+	private int[] internedHashes = new int[64];
+	private int internedCount = 0;
+
 	public Source(String fileName, String src) {
 		this.fileName = fileName;
 		this.content = src;
 	}
 
+	/**
+	 * contentのstartからendまでの文字列を返す．
+	 * 同じ綴りには同じ文字列を返し，文字列を作るのは綴りごとに最初の1度だけ．
+	 * 表はこのソースごとのもので，JVM全体の文字列プールには加えない．
+	 * @param start 開始位置
+	 * @param end 終了位置
+	 * @return 文字列
+	 */
+	public String intern(int start, int end) {
+		int hash = 0;
+		for(int i = start; i < end; i++) {
+			hash = 31 * hash + content.charAt(i);
+		}
+		int mask = interned.length - 1;
+		int slot = hash & mask;
+		while(interned[slot] != null) {
+			String candidate = interned[slot];
+			if(internedHashes[slot] == hash
+					&& candidate.length() == end - start
+					&& content.startsWith(candidate, start)) {
+				return candidate;
+			}
+			slot = (slot + 1) & mask;
+		}
+		String str = content.substring(start, end);
+		interned[slot] = str;
+		internedHashes[slot] = hash;
+		if(++internedCount * 2 > interned.length) {
+			growInterned();
+		}
+		return str;
+	}
+
+	private void growInterned() {
+		String[] oldStrs = interned;
+		int[] oldHashes = internedHashes;
+		interned = new String[oldStrs.length * 2];
+		internedHashes = new int[oldStrs.length * 2];
+		int mask = interned.length - 1;
+		for(int i = 0; i < oldStrs.length; i++) {
+			if(oldStrs[i] != null) {
+				int slot = oldHashes[i] & mask;
+				while(interned[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				interned[slot] = oldStrs[i];
+				internedHashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
 	public Position getPosition(int charIdx) {
 		int lineIdx = Arrays.binarySearch(lineStartIndexes, charIdx);
 		if(lineIdx < 0) {
@@ -100,20 +100,17 @@ public final class Token implements PrettyPrintable, LocationHolder {
 						k -> k.str().charAt(0),  // 1文字目が被ったら実行時例外
 						k -> k));
 
-		private static final Map<String, Kind> keywordLookup =
-				Stream.of(
-						TRUE,
-						FALSE,
-						MODULE,
-						TYPE,
-						LET,
-						IN,
-						CASE,
-						OF,
-						IF,
-						THEN,
-						ELSE)
-				.collect(Collectors.toMap(Kind::str, t -> t));
+		// 先頭2文字で引くキーワードの表
+		private static final Kind[] keywordTable = new Kind[26 * 26];
+		static {
+			for(Kind keyword : new Kind[] { TRUE, FALSE, MODULE, TYPE, LET, IN, CASE, OF, IF, THEN, ELSE }) {
+				int slot = keywordSlot(keyword.str, 0);
+				if(keywordTable[slot] != null) {  // 先頭2文字が被ったら実行時例外
+					throw new ExceptionInInitializerError("keyword collision: " + keywordTable[slot] + ", " + keyword);
+				}
+				keywordTable[slot] = keyword;
+			}
+		}
 
 		private final String str;
 
@@ -139,8 +136,35 @@ public final class Token implements PrettyPrintable, LocationHolder {
 			return null;
 		}
 
-		public static Kind lookupKeyword(String id) {
-			return keywordLookup.getOrDefault(id, null);
+		/**
+		 * srcのstartからendまでがキーワードならそれを返す．文字列は作らない．
+		 * @param src ソースの文字列
+		 * @param start 語の開始位置
+		 * @param end 語の終了位置（この位置の文字は含まない）
+		 * @return キーワードの種類（キーワードでなければnull）
+		 */
+		public static Kind lookupKeyword(String src, int start, int end) {
+			if(end - start < 2) {
+				return null;
+			}
+			int slot = keywordSlot(src, start);
+			if(slot < 0) {
+				return null;
+			}
+			Kind keyword = keywordTable[slot];
+			if(keyword != null && keyword.str.length() == end - start && src.startsWith(keyword.str, start)) {
+				return keyword;
+			}
+			return null;
+		}
+
+		private static int keywordSlot(String src, int offset) {
+			int c0 = src.charAt(offset) - 'a';
+			int c1 = src.charAt(offset + 1) - 'a';
+			if(c0 < 0 || 26 <= c0 || c1 < 0 || 26 <= c1) {
+				return -1;
+			}
+			return c0 * 26 + c1;
 		}
 	}
 
@@ -152,7 +176,7 @@ public final class Token implements PrettyPrintable, LocationHolder {
 	}
 
 	public String str() {
-		return info.content.substring(start, end);
+		return kind.str.isEmpty() ? info.intern(start, end) : kind.str;
 	}
 
 	@Override
@@ -1,18 +1,43 @@
 package zlk.parser;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+
+import zlk.parser.Token.Kind;
 
 /**
- * 字句解析の結果をPEGパーサから利用するための形式
+ * 字句解析の結果をPEGパーサから利用するための形式．
+ *
+ * トークンは種類と開始位置，終了位置の配列で持ち，{@link Token}は読み出したときに作る．
  */
 public final class Tokenized {
-	private final Token[] tokens;
+	private static final Kind[] KINDS = Kind.values();
+
+	private final Source source;
+	private final byte[] kinds;  // Kindのordinal
+	private final int[] starts;
+	private final int[] ends;
+	private final int length;
 	private int idx;
 
-	public Tokenized(Token[] tokens) {
-		this.tokens = tokens;
+	// packratモードで規則ごと，位置ごとに記録した解析結果と終了位置（packratモードでなければnull）
+	private Object[][] memoResults;
+	private int[][] memoEnds;
+
+	/**
+	 * @param source ソース
+	 * @param kinds 各トークンの種類のordinal
+	 * @param starts 各トークンの開始位置
+	 * @param ends 各トークンの終了位置
+	 * @param length トークン数．配列はこれより長くてもよい
+	 */
+	Tokenized(Source source, byte[] kinds, int[] starts, int[] ends, int length) {
+		this.source = source;
+		this.kinds = kinds;
+		this.starts = starts;
+		this.ends = ends;
+		this.length = length;
 		this.idx = 0;
 	}
 
@@ -21,7 +46,7 @@ public final class Tokenized {
 	 * @return このソースのトークン数
 	 */
 	public int length() {
-		return tokens.length;
+		return length;
 	}
 
 	/**
@@ -29,7 +54,7 @@ public final class Tokenized {
 	 * @return 読み取ればtrue
 	 */
 	public boolean hasNext() {
-		return idx < tokens.length;
+		return idx < length;
 	}
 
 	/**
@@ -41,7 +66,20 @@ public final class Tokenized {
 		if(!hasNext()) {
 			throw new NoSuchElementException();
 		}
-		return tokens[idx++];
+		Token token = tokenAt(idx);
+		idx++;
+		return token;
+	}
+
+	/**
+	 * 現在の読み取り位置のトークンを読み飛ばし，読み取り位置を1つ進める．トークンは作らない．
+	 * @throws NoSuchElementException トークンが無い場合
+	 */
+	public void skip() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		idx++;
 	}
 
 	/**
@@ -53,7 +91,32 @@ public final class Tokenized {
 		if(!hasNext()) {
 			throw new NoSuchElementException();
 		}
-		return tokens[idx];
+		return tokenAt(idx);
+	}
+
+	/**
+	 * 現在の読み取り位置のトークンの種類を返す．トークンは作らない．
+	 * @return トークンの種類
+	 * @throws NoSuchElementException トークンが無い場合
+	 */
+	public Kind peekKind() {
+		return KINDS[peekKindOrdinal()];
+	}
+
+	/**
+	 * 現在の読み取り位置のトークンの種類のordinalを返す．
+	 * @return トークンの種類のordinal
+	 * @throws NoSuchElementException トークンが無い場合
+	 */
+	int peekKindOrdinal() {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return kinds[idx];
+	}
+
+	private Token tokenAt(int index) {
+		return new Token(source, KINDS[kinds[index]], starts[index], ends[index]);
 	}
 
 	/**
@@ -70,14 +133,85 @@ public final class Tokenized {
 	 * @throws IndexOutOfBoundsException 指定した位置が無効な場合
 	 */
 	public void jump(int index) {
-		if(index < 0 || tokens.length < idx) {
-			throw new IndexOutOfBoundsException("index: "+index+", length: "+tokens.length);
+		if(index < 0 || length < idx) {
+			throw new IndexOutOfBoundsException("index: "+index+", length: "+length);
 		}
 		idx = index;
 	}
 
+	/**
+	 * packratモードにする．
+	 * {@link Peg#memo(Peg)}で包んだ規則は，位置ごとに解析結果を記録して同じ位置からの再解析を避ける．
+	 * 記録はトークン数に比例する領域を使うので，解析が終わったら{@link #releasePackrat()}で解放する．
+	 */
+	public void enablePackrat() {
+		memoResults = new Object[0][];
+		memoEnds = new int[0][];
+	}
+
+	/**
+	 * 記録した解析結果を解放し，packratモードを終える．
+	 */
+	public void releasePackrat() {
+		memoResults = null;
+		memoEnds = null;
+	}
+
+	/**
+	 * packratモードかどうかを返す．
+	 * @return packratモードならtrue
+	 */
+	public boolean isPackrat() {
+		return memoResults != null;
+	}
+
+	/**
+	 * 記録した解析結果を返す．
+	 * @param rule 規則の番号
+	 * @param index 解析の開始位置
+	 * @return 解析結果（記録がなければnull）
+	 */
+	Object memoized(int rule, int index) {
+		if(rule >= memoResults.length || memoResults[rule] == null) {
+			return null;
+		}
+		return memoResults[rule][index];
+	}
+
+	/**
+	 * 記録した解析の終了位置を返す．
+	 * @param rule 規則の番号
+	 * @param index 解析の開始位置
+	 * @return 終了位置
+	 */
+	int memoizedEnd(int rule, int index) {
+		return memoEnds[rule][index];
+	}
+
+	/**
+	 * 解析結果を記録する．
+	 * @param rule 規則の番号
+	 * @param index 解析の開始位置
+	 * @param result 解析結果
+	 * @param end 終了位置
+	 */
+	void memoize(int rule, int index, Object result, int end) {
+		if(rule >= memoResults.length) {
+			memoResults = Arrays.copyOf(memoResults, rule + 1);
+			memoEnds = Arrays.copyOf(memoEnds, rule + 1);
+		}
+		if(memoResults[rule] == null) {
+			memoResults[rule] = new Object[length + 1];
+			memoEnds[rule] = new int[length + 1];
+		}
+		memoResults[rule][index] = result;
+		memoEnds[rule][index] = end;
+	}
+
 	public void forEach(Consumer<? super Token> action) {
-		Stream.of(tokens).forEach(action);
+		for(int i = 0; i < length; i++) {
+			action.accept(tokenAt(i));
+		}
 	}
 
 	public String restSource() {
@@ -85,13 +219,11 @@ public final class Tokenized {
 			return "";
 		}
 
-		Token start = peek();
-
 		// インデントを数える
 		int indent = 0;
 		int idx = 0;
-		while(tokens[idx] != start) {
-			switch(tokens[idx].kind) {
+		while(idx != this.idx) {
+			switch(KINDS[kinds[idx]]) {
 			case Token.Kind.ENDENT:
 				indent++;
 				break;
@@ -105,8 +237,8 @@ public final class Tokenized {
 		}
 		StringBuilder sb = new StringBuilder();
 		boolean lineStart = false;
-		while(idx != tokens.length) {
-			switch(tokens[idx].kind) {
+		while(idx != length) {
+			switch(KINDS[kinds[idx]]) {
 			case Token.Kind.ENDENT:
 				indent++;
 				for (int i = 0; i < indent; i++) {
@@ -132,7 +264,7 @@ public final class Tokenized {
 				if(!lineStart) {
 					sb.append(" ");
 				}
-				sb.append(tokens[idx].str());
+				sb.append(tokenAt(idx).str());
 				lineStart = false;
 				break;
 			}
@@ -146,13 +278,11 @@ public final class Tokenized {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("idx: ").append(idx).append(", tokens: [");
-		boolean first = true;
-		for(Token token : tokens) {
-			if(!first) {
+		for(int i = 0; i < length; i++) {
+			if(i != 0) {
 				sb.append(", ");
 			}
-			sb.append(token);
-			first = false;
+			sb.append(tokenAt(i));
 		}
 		sb.append("]");
 		return sb.toString();
@@ -15,7 +15,7 @@ import java.util.Objects;
 /**
  * 配列を用いた汎用のZlkレコード値
  *
- * 特殊化したデータ型で最適化した際はfallbackとなる予定
+ * Javaから作られたレコードなど，{@link ShapeRecord}を用いない場合のfallbackとなる
  */
 public final class ArrayRecord implements ZlkRecord {
 	private static final ArrayRecord EMPTY =
@@ -80,7 +80,7 @@ public final class ArrayRecord implements ZlkRecord {
 		return new ArrayRecord(names, values);
 	}
 
-	private static String[] decodeNames(String encoded) {
+	static String[] decodeNames(String encoded) {
 		if(encoded == null || !encoded.startsWith("v1;")) {
 			throw new IllegalArgumentException("invalid record shape encoding");
 		}
@@ -135,6 +135,19 @@ public final class ArrayRecord implements ZlkRecord {
 		return new ArrayRecord(names, newValues);
 	}
 
+	/**
+	 * 複数のフィールドを置き換えたレコード値を，配列の複製1回で作る
+	 * @param names 置き換えるフィールド名
+	 * @param newValues namesと同じ順の新しい値
+	 */
+	ZlkRecord updateAll(String[] names, Object[] newValues) {
+		Object[] copied = values.clone();
+		for(int i = 0; i < names.length; i++) {
+			copied[indexOf(names[i])] = newValues[i];
+		}
+		return new ArrayRecord(this.names, copied);
+	}
+
 	private int indexOf(String name) {
 		int index = Arrays.binarySearch(names, name);
 		if(index < 0) {
@@ -0,0 +1,391 @@
+package zlk.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import zlk.bytecodegen.BytecodeGenerator;
+
+/**
+ * フィールド名の組（shape）ごとに実行時に生成するクラスを用いたZlkレコード値
+ *
+ * 生成されるクラスは正規順のフィールドをfinalフィールドとして直接持つ．
+ * 生成コードのレコードリテラル，フィールドアクセス，更新はinvokedynamicでこのクラスに結び付く．
+ * アクセスと更新の呼出し箇所は最初に観測したshapeに特殊化し，
+ * 複数フィールドの更新も元のフィールドを読んでコンストラクタを1度呼ぶだけになる．
+ * 他の実装（{@link ArrayRecord}など）には{@link ZlkRecord}のメソッドで対応する．
+ */
+public abstract class ShapeRecord implements ZlkRecord {
+	private static final String SHAPE_CLASS_NAME = "zlk/runtime/ShapeRecord$Generated";
+	private static final String SUPER_CLASS_NAME = "zlk/runtime/ShapeRecord";
+	private static final String OBJECT_DESC = "Ljava/lang/Object;";
+	private static final String FIELD_DESC = "(I)Ljava/lang/Object;";
+	private static final String WITH_DESC = "(ILjava/lang/Object;)Lzlk/runtime/ShapeRecord;";
+
+	private static final Map<String, Shape> SHAPES_BY_ENCODING = new ConcurrentHashMap<>();
+	private static final Map<Class<?>, Shape> SHAPES_BY_CLASS = new ConcurrentHashMap<>();
+
+	private static final MethodHandle LINK_GET;
+	private static final MethodHandle LINK_UPDATE;
+	private static final MethodHandle GENERIC_GET;
+	private static final MethodHandle GENERIC_UPDATE;
+	private static final MethodHandle IS_INSTANCE_OF;
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			LINK_GET = lookup.findStatic(ShapeRecord.class, "linkGet", MethodType.methodType(
+					Object.class, MutableCallSite.class, String.class, ZlkRecord.class));
+			LINK_UPDATE = lookup.findStatic(ShapeRecord.class, "linkUpdate", MethodType.methodType(
+					ZlkRecord.class, MutableCallSite.class, String[].class, ZlkRecord.class, Object[].class));
+			GENERIC_GET = lookup.findVirtual(ZlkRecord.class, "get", MethodType.methodType(
+					Object.class, String.class));
+			GENERIC_UPDATE = lookup.findStatic(ShapeRecord.class, "updateAll", MethodType.methodType(
+					ZlkRecord.class, String[].class, ZlkRecord.class, Object[].class));
+			IS_INSTANCE_OF = lookup.findStatic(ShapeRecord.class, "isInstanceOf", MethodType.methodType(
+					boolean.class, Class.class, ZlkRecord.class));
+		} catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * 生成したクラスとそのフィールドへのアクセス手段
+	 * @param type 生成したhidden class
+	 * @param names 正規順のフィールド名
+	 * @param constructor 正規順の値からレコード値を作る
+	 * @param getters 正規順のフィールドごとのgetter
+	 */
+	private record Shape(
+			Class<?> type,
+			List<String> names,
+			MethodHandle constructor,
+			MethodHandle[] getters) {
+
+		int indexOf(String name) {
+			int index = names.indexOf(name);
+			if(index < 0) {
+				throw new IllegalArgumentException("unknown field: " + name);
+			}
+			return index;
+		}
+
+		/**
+		 * {@code (ZlkRecord, Object...)ZlkRecord}．
+		 * 置き換えないフィールドは元のレコードから読み，コンストラクタを直接呼ぶ．
+		 * @param fields 置き換えるフィールド名
+		 */
+		MethodHandle updater(String[] fields) {
+			MethodHandle[] filters = getters.clone();
+			int[] reorder = new int[names.size()];
+			for(int i = 0; i < fields.length; i++) {
+				int index = indexOf(fields[i]);
+				filters[index] = null;
+				reorder[index] = i + 1;
+			}
+			MethodType updaterType = MethodType.methodType(ZlkRecord.class, ZlkRecord.class)
+					.appendParameterTypes(Collections.nCopies(fields.length, Object.class));
+			return MethodHandles.permuteArguments(
+					MethodHandles.filterArguments(constructor, 0, filters),
+					updaterType,
+					reorder);
+		}
+	}
+
+	protected ShapeRecord() {}
+
+	/**
+	 * 正規順で{@code index}番目のフィールドの値を返す
+	 */
+	protected abstract Object field(int index);
+
+	/**
+	 * 正規順で{@code index}番目のフィールドだけを置き換えた新しいレコード値を返す
+	 */
+	protected abstract ShapeRecord with(int index, Object value);
+
+	public static CallSite bootstrapLiteral(
+			MethodHandles.Lookup caller,
+			String invokedName,
+			MethodType callSiteType,
+			String encodedNames) throws ReflectiveOperationException {
+		String[] names = ArrayRecord.decodeNames(encodedNames);
+		if(names.length == 0 || callSiteType.parameterCount() != names.length) {
+			return ArrayRecord.bootstrapLiteral(caller, invokedName, callSiteType, encodedNames);
+		}
+		if(callSiteType.returnType() != ZlkRecord.class) {
+			throw new IllegalArgumentException("record literal must return ZlkRecord");
+		}
+
+		Shape shape = shapeOf(encodedNames, names);
+		return new ConstantCallSite(shape.constructor().asType(callSiteType));
+	}
+
+	/**
+	 * フィールドアクセス{@code (ZlkRecord)Object}の呼出し箇所を作る．
+	 * 最初に呼ばれたときの値のshapeに特殊化する．
+	 */
+	public static CallSite bootstrapGet(
+			MethodHandles.Lookup caller,
+			String invokedName,
+			MethodType callSiteType,
+			String field) {
+		MutableCallSite site = new MutableCallSite(callSiteType);
+		site.setTarget(MethodHandles.insertArguments(LINK_GET, 0, site, field).asType(callSiteType));
+		return site;
+	}
+
+	/**
+	 * 複数フィールドの更新{@code (ZlkRecord, Object...)ZlkRecord}の呼出し箇所を作る．
+	 * 最初に呼ばれたときの値のshapeに特殊化し，更新後の値を1度のアロケーションで作る．
+	 * @param encodedNames 置き換えるフィールド名．{@link #bootstrapLiteral}と同じ符号化
+	 */
+	public static CallSite bootstrapUpdate(
+			MethodHandles.Lookup caller,
+			String invokedName,
+			MethodType callSiteType,
+			String encodedNames) {
+		String[] fields = ArrayRecord.decodeNames(encodedNames);
+		if(fields.length == 0 || callSiteType.parameterCount() != fields.length + 1) {
+			throw new IllegalArgumentException("record update field count mismatch: " + encodedNames);
+		}
+		MutableCallSite site = new MutableCallSite(callSiteType);
+		site.setTarget(MethodHandles.insertArguments(LINK_UPDATE, 0, site, fields)
+				.asCollector(Object[].class, fields.length)
+				.asType(callSiteType));
+		return site;
+	}
+
+	@SuppressWarnings("unused")
+	private static Object linkGet(MutableCallSite site, String field, ZlkRecord record) {
+		MethodHandle generic = MethodHandles.insertArguments(GENERIC_GET, 1, field);
+		Shape shape = SHAPES_BY_CLASS.get(record.getClass());
+		MethodHandle target = shape == null
+				? generic
+				: MethodHandles.guardWithTest(
+						IS_INSTANCE_OF.bindTo(shape.type()),
+						shape.getters()[shape.indexOf(field)],
+						generic);
+		site.setTarget(target.asType(site.type()));
+		return record.get(field);
+	}
+
+	@SuppressWarnings("unused")
+	private static ZlkRecord linkUpdate(MutableCallSite site, String[] fields, ZlkRecord record, Object[] values) {
+		MethodHandle generic = MethodHandles.insertArguments(GENERIC_UPDATE, 0, (Object) fields)
+				.asCollector(Object[].class, fields.length);
+		Shape shape = SHAPES_BY_CLASS.get(record.getClass());
+		MethodHandle target = shape == null
+				? generic
+				: MethodHandles.guardWithTest(
+						IS_INSTANCE_OF.bindTo(shape.type()),
+						shape.updater(fields),
+						generic);
+		site.setTarget(target.asType(site.type()));
+		return updateAll(fields, record, values);
+	}
+
+	private static ZlkRecord updateAll(String[] fields, ZlkRecord record, Object[] values) {
+		if(record instanceof ArrayRecord array) {
+			return array.updateAll(fields, values);
+		}
+		ZlkRecord updated = record;
+		for(int i = 0; i < fields.length; i++) {
+			updated = updated.update(fields[i], values[i]);
+		}
+		return updated;
+	}
+
+	@SuppressWarnings("unused")
+	private static boolean isInstanceOf(Class<?> type, ZlkRecord record) {
+		return record.getClass() == type;
+	}
+
+	private static Shape shapeOf(String encodedNames, String[] names) {
+		return SHAPES_BY_ENCODING.computeIfAbsent(encodedNames, _ -> {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(
+						genShapeClass(names.length), true);
+				Class<?> type = lookup.lookupClass();
+				MethodType constructorType = MethodType.methodType(
+						void.class, Collections.nCopies(names.length, Object.class));
+				MethodHandle[] getters = new MethodHandle[names.length];
+				for(int i = 0; i < names.length; i++) {
+					getters[i] = lookup.findGetter(type, fieldName(i), Object.class)
+							.asType(MethodType.methodType(Object.class, ZlkRecord.class));
+				}
+				Shape shape = new Shape(
+						type,
+						List.of(names),
+						lookup.findConstructor(type, constructorType)
+								.asType(constructorType.changeReturnType(ZlkRecord.class)),
+						getters);
+				SHAPES_BY_CLASS.put(type, shape);
+				return shape;
+			} catch(ReflectiveOperationException e) {
+				throw new IllegalStateException("cannot define record shape: " + Arrays.toString(names), e);
+			}
+		});
+	}
+
+	/**
+	 * {@code size}個のフィールドを持つレコードのクラスを生成する．
+	 *
+	 * <pre>{@code
+	 * final class Generated extends ShapeRecord {
+	 *     private final Object f0;
+	 *     private final Object f1;
+	 *
+	 *     Generated(Object f0, Object f1) { this.f0 = f0; this.f1 = f1; }
+	 *
+	 *     protected Object field(int index) {
+	 *         switch(index) { case 0: return f0; case 1: return f1; default: throw ... }
+	 *     }
+	 *
+	 *     protected ShapeRecord with(int index, Object value) {
+	 *         switch(index) { case 0: return new Generated(value, f1); case 1: return new Generated(f0, value); default: throw ... }
+	 *     }
+	 * }
+	 * }</pre>
+	 */
+	private static byte[] genShapeClass(int size) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(
+				BytecodeGenerator.OPCODE_VERSION,
+				Opcodes.ACC_FINAL + Opcodes.ACC_SUPER + Opcodes.ACC_SYNTHETIC,
+				SHAPE_CLASS_NAME,
+				null,
+				SUPER_CLASS_NAME,
+				null);
+		String constructorDesc = "(" + OBJECT_DESC.repeat(size) + ")V";
+
+		for(int i = 0; i < size; i++) {
+			cw.visitField(Opcodes.ACC_PRIVATE + Opcodes.ACC_FINAL, fieldName(i), OBJECT_DESC, null, null).visitEnd();
+		}
+
+		MethodVisitor mv = cw.visitMethod(0, "<init>", constructorDesc, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, SUPER_CLASS_NAME, "<init>", "()V", false);
+		for(int i = 0; i < size; i++) {
+			mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitVarInsn(Opcodes.ALOAD, i + 1);
+			mv.visitFieldInsn(Opcodes.PUTFIELD, SHAPE_CLASS_NAME, fieldName(i), OBJECT_DESC);
+		}
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(Opcodes.ACC_PROTECTED, "field", FIELD_DESC, null, null);
+		mv.visitCode();
+		Label[] fieldLabels = genIndexSwitch(mv, size);
+		for(int i = 0; i < size; i++) {
+			mv.visitLabel(fieldLabels[i]);
+			mv.visitVarInsn(Opcodes.ALOAD, 0);
+			mv.visitFieldInsn(Opcodes.GETFIELD, SHAPE_CLASS_NAME, fieldName(i), OBJECT_DESC);
+			mv.visitInsn(Opcodes.ARETURN);
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		mv = cw.visitMethod(Opcodes.ACC_PROTECTED, "with", WITH_DESC, null, null);
+		mv.visitCode();
+		Label[] withLabels = genIndexSwitch(mv, size);
+		for(int i = 0; i < size; i++) {
+			mv.visitLabel(withLabels[i]);
+			mv.visitTypeInsn(Opcodes.NEW, SHAPE_CLASS_NAME);
+			mv.visitInsn(Opcodes.DUP);
+			for(int j = 0; j < size; j++) {
+				if(i == j) {
+					mv.visitVarInsn(Opcodes.ALOAD, 2);
+				} else {
+					mv.visitVarInsn(Opcodes.ALOAD, 0);
+					mv.visitFieldInsn(Opcodes.GETFIELD, SHAPE_CLASS_NAME, fieldName(j), OBJECT_DESC);
+				}
+			}
+			mv.visitMethodInsn(Opcodes.INVOKESPECIAL, SHAPE_CLASS_NAME, "<init>", constructorDesc, false);
+			mv.visitInsn(Opcodes.ARETURN);
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * 第1引数のindexでtableswitchし，範囲外であれば例外を投げる．
+	 * @return 各indexの処理の先頭
+	 */
+	private static Label[] genIndexSwitch(MethodVisitor mv, int size) {
+		Label[] labels = new Label[size];
+		for(int i = 0; i < size; i++) {
+			labels[i] = new Label();
+		}
+		Label outOfBounds = new Label();
+		mv.visitVarInsn(Opcodes.ILOAD, 1);
+		mv.visitTableSwitchInsn(0, size - 1, outOfBounds, labels);
+		mv.visitLabel(outOfBounds);
+		mv.visitTypeInsn(Opcodes.NEW, "java/lang/IndexOutOfBoundsException");
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitVarInsn(Opcodes.ILOAD, 1);
+		mv.visitMethodInsn(
+				Opcodes.INVOKESPECIAL,
+				"java/lang/IndexOutOfBoundsException",
+				"<init>",
+				"(I)V",
+				false);
+		mv.visitInsn(Opcodes.ATHROW);
+		return labels;
+	}
+
+	private static String fieldName(int index) {
+		return "f" + index;
+	}
+
+	private Shape shape() {
+		return SHAPES_BY_CLASS.get(getClass());
+	}
+
+	@Override
+	public List<String> names() {
+		return shape().names();
+	}
+
+	@Override
+	public Object get(String name) {
+		return field(shape().indexOf(name));
+	}
+
+	@Override
+	public ZlkRecord update(String name, Object value) {
+		return with(shape().indexOf(name), value);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return ZlkRecord.structuralEquals(this, other);
+	}
+
+	@Override
+	public int hashCode() {
+		return ZlkRecord.structuralHashCode(this);
+	}
+
+	@Override
+	public String toString() {
+		return ZlkRecord.structuralToString(this);
+	}
+}
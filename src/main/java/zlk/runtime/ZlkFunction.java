@@ -0,0 +1,33 @@
+package zlk.runtime;
+
+import java.util.function.Function;
+
+/**
+ * Zlkの関数値
+ *
+ * 1引数ずつの適用{@link #apply}に加え，複数の引数をまとめて受け取る{@code apply2}〜{@code apply4}を持つ．
+ * 既定の実装は1引数ずつ適用する．
+ * 引数の個数が分かっている関数値は{@link ZlkFunction2}〜{@link ZlkFunction4}を実装し，
+ * 個数の一致する適用を途中の関数値を作らずに受け取る．
+ */
+@FunctionalInterface
+public interface ZlkFunction extends Function<Object, Object> {
+	default Object apply2(Object a0, Object a1) {
+		return of(apply(a0)).apply(a1);
+	}
+
+	default Object apply3(Object a0, Object a1, Object a2) {
+		return of(apply(a0)).apply2(a1, a2);
+	}
+
+	default Object apply4(Object a0, Object a1, Object a2, Object a3) {
+		return of(apply(a0)).apply3(a1, a2, a3);
+	}
+
+	/**
+	 * 適用の結果である関数値を取り出す
+	 */
+	static ZlkFunction of(Object function) {
+		return (ZlkFunction) function;
+	}
+}
@@ -0,0 +1,25 @@
+package zlk.runtime;
+
+/**
+ * 2引数を受け取る関数値
+ */
+@FunctionalInterface
+public interface ZlkFunction2 extends ZlkFunction {
+	@Override
+	Object apply2(Object a0, Object a1);
+
+	@Override
+	default Object apply(Object a0) {
+		return (ZlkFunction) a1 -> apply2(a0, a1);
+	}
+
+	@Override
+	default Object apply3(Object a0, Object a1, Object a2) {
+		return ZlkFunction.of(apply2(a0, a1)).apply(a2);
+	}
+
+	@Override
+	default Object apply4(Object a0, Object a1, Object a2, Object a3) {
+		return ZlkFunction.of(apply2(a0, a1)).apply2(a2, a3);
+	}
+}
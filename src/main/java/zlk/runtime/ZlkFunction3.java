@@ -0,0 +1,25 @@
+package zlk.runtime;
+
+/**
+ * 3引数を受け取る関数値
+ */
+@FunctionalInterface
+public interface ZlkFunction3 extends ZlkFunction {
+	@Override
+	Object apply3(Object a0, Object a1, Object a2);
+
+	@Override
+	default Object apply(Object a0) {
+		return (ZlkFunction2) (a1, a2) -> apply3(a0, a1, a2);
+	}
+
+	@Override
+	default Object apply2(Object a0, Object a1) {
+		return (ZlkFunction) a2 -> apply3(a0, a1, a2);
+	}
+
+	@Override
+	default Object apply4(Object a0, Object a1, Object a2, Object a3) {
+		return ZlkFunction.of(apply3(a0, a1, a2)).apply(a3);
+	}
+}
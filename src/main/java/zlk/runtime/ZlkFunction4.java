@@ -0,0 +1,25 @@
+package zlk.runtime;
+
+/**
+ * 4引数を受け取る関数値．これより多い引数は4引数ずつ適用する
+ */
+@FunctionalInterface
+public interface ZlkFunction4 extends ZlkFunction {
+	@Override
+	Object apply4(Object a0, Object a1, Object a2, Object a3);
+
+	@Override
+	default Object apply(Object a0) {
+		return (ZlkFunction3) (a1, a2, a3) -> apply4(a0, a1, a2, a3);
+	}
+
+	@Override
+	default Object apply2(Object a0, Object a1) {
+		return (ZlkFunction2) (a2, a3) -> apply4(a0, a1, a2, a3);
+	}
+
+	@Override
+	default Object apply3(Object a0, Object a1, Object a2) {
+		return (ZlkFunction) a3 -> apply4(a0, a1, a2, a3);
+	}
+}
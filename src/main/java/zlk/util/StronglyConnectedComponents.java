@@ -0,0 +1,78 @@
+package zlk.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import zlk.util.collection.Seq;
+import zlk.util.collection.SeqBuffer;
+
+/**
+ * 有向グラフの強連結成分をTarjanのアルゴリズムで求める．
+ *
+ * @param <N> 頂点の型
+ */
+public final class StronglyConnectedComponents<N> {
+	private final Function<? super N, ? extends Iterable<N>> successors;
+
+	private final Map<N, Integer> indices;
+	private final Map<N, Integer> lowLinks;
+	private final SeqBuffer<N> stack;
+	private final Set<N> onStack;
+	private final SeqBuffer<Seq<N>> components;
+
+	private StronglyConnectedComponents(Function<? super N, ? extends Iterable<N>> successors) {
+		this.successors = successors;
+		this.indices = new HashMap<>();
+		this.lowLinks = new HashMap<>();
+		this.stack = new SeqBuffer<>();
+		this.onStack = new HashSet<>();
+		this.components = new SeqBuffer<>();
+	}
+
+	/**
+	 * 強連結成分を求める．
+	 * @param nodes 探索を始める頂点．この順に未訪問のものから辿る
+	 * @param successors 頂点から出る辺の行き先
+	 * @return 強連結成分．どの成分も，そこから到達できる他の成分より後に並ぶ
+	 */
+	public static <N> Seq<Seq<N>> find(Iterable<N> nodes, Function<? super N, ? extends Iterable<N>> successors) {
+		StronglyConnectedComponents<N> finder = new StronglyConnectedComponents<>(successors);
+		for(N node : nodes) {
+			if(!finder.indices.containsKey(node)) {
+				finder.connect(node);
+			}
+		}
+		return finder.components.toSeq();
+	}
+
+	private void connect(N node) {
+		int index = indices.size();
+		indices.put(node, index);
+		lowLinks.put(node, index);
+		stack.add(node);
+		onStack.add(node);
+
+		for(N successor : successors.apply(node)) {
+			if(!indices.containsKey(successor)) {
+				connect(successor);
+				lowLinks.put(node, Math.min(lowLinks.get(node), lowLinks.get(successor)));
+			} else if(onStack.contains(successor)) {
+				lowLinks.put(node, Math.min(lowLinks.get(node), indices.get(successor)));
+			}
+		}
+
+		if(lowLinks.get(node).equals(indices.get(node))) {
+			SeqBuffer<N> component = new SeqBuffer<>();
+			N member;
+			do {
+				member = stack.removeLast();
+				onStack.remove(member);
+				component.add(member);
+			} while(!member.equals(node));
+			components.add(component.toSeq());
+		}
+	}
+}
@@ -3,14 +3,18 @@ package zlk;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import zlk.clcalc.CcExp;
 import zlk.common.RecordField;
 import zlk.common.Type;
 import zlk.runtime.ZlkCustom;
@@ -24,6 +28,20 @@ import zlk.util.collection.Seq;
 
 @ExtendWith(DumpOnFailureWatcher.class)
 public class FeatureTest {
+	@Test
+	void keywordPrefixesAndExtensionsAreIdentifiers() {
+		String src = """
+		iff lets = add lets 1
+		ofs cases = if isZero cases then 0 else iff cases
+		thenx = ofs (iff 1)
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		module.getValue("thenx").is(3);
+		module.getValue("ofs").apply(0).is(0);
+	}
+
 	@Test
 	void emptyRecordLiteral() {
 		var module = new ModuleTester("empty = {}", CompileLevel.BYTECODE_GEN);
@@ -275,10 +293,10 @@ public class FeatureTest {
 		var someComponents = someClass.getRecordComponents();
 		assertEquals(2, someComponents.length);
 		assertEquals("val0", someComponents[0].getName());
-		assertEquals(Integer.class, someComponents[0].getType());
+		assertEquals(int.class, someComponents[0].getType());
 		assertEquals(1, someComponents[0].getAccessor().invoke(some));
 		assertEquals("val1", someComponents[1].getName());
-		assertEquals(Boolean.class, someComponents[1].getType());
+		assertEquals(boolean.class, someComponents[1].getType());
 		assertEquals(true, someComponents[1].getAccessor().invoke(some));
 		var someField = someClass.getDeclaredField("val0");
 		assertTrue(Modifier.isPrivate(someField.getModifiers()));
@@ -287,8 +305,11 @@ public class FeatureTest {
 		assertTrue(noneClass.getDeclaredMethod("appendStringAsArgTo", StringBuilder.class).isSynthetic());
 		assertTrue(someClass.getDeclaredMethod("appendStringTo", StringBuilder.class).isSynthetic());
 		assertTrue(someClass.getDeclaredMethod("appendStringAsArgTo", StringBuilder.class).isSynthetic());
+		assertEquals(0, optionClass.getMethod("tag").invoke(none));
+		assertEquals(1, optionClass.getMethod("tag").invoke(some));
 
-		assertEquals(none, sameNone);
+		assertSame(none, sameNone);
+		assertSame(none, noneClass.getField("INSTANCE").get(null));
 		assertEquals(none.hashCode(), sameNone.hashCode());
 		assertEquals(some, sameSome);
 		assertEquals(some.hashCode(), sameSome.hashCode());
@@ -368,6 +389,264 @@ public class FeatureTest {
 		fact.apply(5).is(120);
 	}
 
+	@Test
+	void selfTailCallRunsInConstantStack() {
+		String src ="""
+		type List a = Nil | Cons a (List a)
+
+		range n acc =
+		  if isZero n then
+		    acc
+		  else
+		    range (sub n 1) (Cons n acc)
+
+		foldl func acc list =
+		  case list of
+		    Nil -> acc
+		    Cons x xs -> foldl func (func x acc) xs
+
+		count = foldl (\\e total -> add total 1) 0 (range 1000000 Nil)
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		module.getValue("count").is(1000000);
+	}
+
+	@Test
+	void mutualTailCallsRunInConstantStack() {
+		String src ="""
+		isEven n =
+		  if isZero n then
+		    True
+		  else
+		    isOdd (sub n 1)
+
+		isOdd n =
+		  if isZero n then
+		    False
+		  else
+		    isEven (sub n 1)
+
+		type State = Ping I32 | Pong I32 Bool
+
+		run state acc =
+		  case state of
+		    Ping n -> if isZero n then acc else step (Pong n True) (add acc 1)
+		    Pong n _ -> run (Ping (sub n 1)) acc
+
+		step state acc =
+		  run state (add acc 1)
+
+		even = isEven 1000000
+		odd = isOdd 1000000
+		steps = run (Ping 300000) 0
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		module.getValue("even").is(true);
+		module.getValue("odd").is(false);
+		module.getValue("steps").is(600000);
+		module.getValue("isOdd").apply(7).is(true);
+	}
+
+	@Test
+	void constantsAreEvaluatedOnce() {
+		String src ="""
+		type List = Nil | Cons I32 List
+
+		range n acc =
+		  if isZero n then
+		    acc
+		  else
+		    range (sub n 1) (Cons n acc)
+
+		table = range 3 Nil
+		tables = Cons 0 table
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		Object table = ((VData) module.getValue("table")).value();
+		Object tables = ((VData) module.getValue("tables")).value();
+
+		assertSame(table, ((VData) module.getValue("table")).value());
+		assertSame(tables, ((VData) module.getValue("tables")).value());
+		module.getValue("tables").isWrittenIn("Cons 0 (Cons 1 (Cons 2 (Cons 3 Nil)))");
+	}
+
+	@Test
+	void closuresTakeSeveralArgumentsAtOnce() {
+		String src ="""
+		sum5 a b c d e = add a (add b (add c (add d e)))
+
+		apply2 f x y = f x y
+		apply3 f x y z = f x y z
+		apply5 f a b c d e = f a b c d e
+
+		addMul k x y = add k (mul x y)
+
+		saturated = apply2 (\\x y -> sub x y) 10 3
+		partial = apply2 (addMul 1) 2 3
+		overApplied = apply3 (\\x -> \\y z -> add x (add y z)) 1 2 3
+		wide = apply5 sum5 1 2 3 4 5
+		wideCaptured = apply2 (sum5 1 2 3) 4 5
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		module.getValue("saturated").is(7);
+		module.getValue("partial").is(7);
+		module.getValue("overApplied").is(6);
+		module.getValue("wide").is(15);
+		module.getValue("wideCaptured").is(15);
+	}
+
+	@Test
+	void monomorphicFunctionsPassUnboxedValues() {
+		String src ="""
+		type List a = Nil | Cons a (List a)
+
+		sumTo n acc =
+		  if isZero n then
+		    acc
+		  else
+		    let
+		      next = sub n 1
+		    in
+		      sumTo next (add acc n)
+
+		isPositive n = if isZero n then False else True
+
+		both a b = if a then b else False
+
+		sumList list =
+		  case list of
+		    Nil -> 0
+		    Cons x xs -> add x (sumList xs)
+
+		apply f x = f x
+
+		total = sumTo 100000 0
+		checked = both (isPositive total) (isPositive 0)
+		listed = sumList (Cons (sumTo 3 0) (Cons 4 Nil))
+		viaClosure = apply (sumTo 4) 0
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		module.getValue("total").is(705082704);
+		module.getValue("checked").is(false);
+		module.getValue("listed").is(10);
+		module.getValue("viaClosure").is(10);
+		module.getValue("isPositive").apply(5).is(true);
+	}
+
+	@Test
+	void concreteCtorFieldsAreUnboxed() throws ReflectiveOperationException {
+		String src ="""
+		type IntList = INil | ICons I32 IntList
+		type Box a = Box a
+
+		prepend = ICons 1
+		listed = prepend (ICons 2 INil)
+
+		sum list =
+		  case list of
+		    INil -> 0
+		    ICons x xs -> add x (sum xs)
+
+		unbox box =
+		  case box of
+		    Box x -> x
+
+		total = sum listed
+		boxed = add (unbox (Box 3)) 4
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		Object listed = ((VData) module.getValue("listed")).value();
+		Object box = ((VData) module.getValue("boxed")).value();
+		assertEquals(int.class, listed.getClass().getRecordComponents()[0].getType());
+		assertEquals("ICons 1 (ICons 2 INil)", listed.toString());
+		assertEquals(7, box);
+		module.getValue("total").is(3);
+	}
+
+	@Test
+	void nestedCasePatternsShareBodies() {
+		String src ="""
+		type List a = Nil | Cons a (List a)
+		type Option a = None | Some a
+
+		firstTwo list =
+		  case list of
+		    Cons (Some x) (Cons (Some y) _) -> add x y
+		    Cons (Some x) _ -> x
+		    Cons None (Cons (Some y) _) -> y
+		    _ -> 0
+
+		pick : { left : Option I32, right : Option I32 } -> I32
+		pick record =
+		  case record of
+		    { left = Some x } -> x
+		    { right = Some y, left = None } -> y
+		    _ -> 0
+
+		both = firstTwo (Cons (Some 1) (Cons (Some 2) Nil))
+		onlyFirst = firstTwo (Cons (Some 3) (Cons None Nil))
+		onlySecond = firstTwo (Cons None (Cons (Some 4) Nil))
+		neither = firstTwo (Cons None (Cons None Nil))
+		empty = firstTwo Nil
+		left = pick { left = Some 5, right = None }
+		right = pick { left = None, right = Some 6 }
+		none = pick { left = None, right = None }
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		module.getValue("both").is(3);
+		module.getValue("onlyFirst").is(3);
+		module.getValue("onlySecond").is(4);
+		module.getValue("neither").is(0);
+		module.getValue("empty").is(0);
+		module.getValue("left").is(5);
+		module.getValue("right").is(6);
+		module.getValue("none").is(0);
+	}
+
+	@Test
+	void caseDispatchesOnConstructorTag() {
+		String src ="""
+		type Op = Add I32 | Sub I32 | Mul I32 | Neg | Zero | Keep
+
+		apply op n =
+		  case op of
+		    Add x -> add n x
+		    Sub x -> sub n x
+		    Mul x -> mul n x
+		    Neg -> sub 0 n
+		    _ -> n
+
+		isKeep op =
+		  case op of
+		    Keep -> True
+		    _ -> False
+
+		added = apply (Add 2) 5
+		subtracted = apply (Sub 2) 5
+		multiplied = apply (Mul 2) 5
+		negated = apply Neg 5
+		kept = apply Keep 5
+		zeroIsKeep = isKeep Zero
+		keepIsKeep = isKeep Keep
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+		module.getValue("added").is(7);
+		module.getValue("subtracted").is(3);
+		module.getValue("multiplied").is(10);
+		module.getValue("negated").is(-5);
+		module.getValue("kept").is(5);
+		module.getValue("zeroIsKeep").is(false);
+		module.getValue("keepIsKeep").is(true);
+	}
+
 	@Test
 	void closuerConversion() {
 		String src ="""
@@ -405,6 +684,37 @@ public class FeatureTest {
 		module.getValue("ans").is(16);
 	}
 
+	@Test
+	void localFunctionsCalledDirectlyAreLifted() {
+		String src ="""
+		apply f x = f x
+
+		scale k n =
+		  let
+		    times x = mul k x
+		    twice x = times (times x)
+		  in
+		    add (twice n) (times 1)
+
+		mixed k =
+		  let
+		    plus x = add k x
+		  in
+		    add (plus 1) (apply plus 2)
+
+		scaled = scale 3 2
+		mixedAnswer = mixed 10
+		""";
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		List<CcExp> scaleNodes = new ArrayList<>();
+		module.getOptimizedDecl("scale").body().walk(scaleNodes::add);
+		assertTrue(scaleNodes.stream().noneMatch(node -> node instanceof CcExp.CcMkCls));
+
+		module.getValue("scaled").is(21);
+		module.getValue("mixedAnswer").is(23);
+	}
+
 	@Test
 	void enumDeclAndCaseExp() {
 		String src="""
@@ -0,0 +1,450 @@
+package zlk;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import zlk.clcalc.CcExp;
+import zlk.common.ConstValue;
+import zlk.common.id.Id;
+import zlk.tester.ModuleTester;
+import zlk.tester.ModuleTester.CompileLevel;
+import zlk.util.collection.Seq;
+
+public class OptimizerTest {
+	@Test
+	void builtinCallsWithConstantArgumentsAreFolded() {
+		String src = """
+		answer = add (mul 6 7) (sub 10 (div 20 2))
+		zero = isZero (sub 3 3)
+		chosen = if isZero 1 then 1 else add 40 2
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertEquals(new ConstValue.I32(42), constantOf(module, "answer"));
+		assertEquals(ConstValue.TRUE, constantOf(module, "zero"));
+		assertEquals(new ConstValue.I32(42), constantOf(module, "chosen"));
+	}
+
+	@Test
+	void identitiesRemoveBuiltinCalls() {
+		String src = """
+		f x = mul (add x 0) (sub (div x 1) 0)
+		g x = add 0 (mul 1 x)
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertEquals(
+				Seq.of(id("f.x"), id("f.x")),
+				((CcExp.CcDirectApp) module.getOptimizedDecl("f").body()).args().map(arg -> ((CcExp.CcVar) arg).id()));
+		assertEquals(id("g.x"), ((CcExp.CcVar) module.getOptimizedDecl("g").body()).id());
+	}
+
+	@Test
+	void divisionByZeroIsLeftForRuntime() {
+		String src = """
+		broken = div 1 (sub 2 2)
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		CcExp.CcDirectApp div = (CcExp.CcDirectApp) module.getOptimizedDecl("broken").body();
+		assertEquals(Id.intern("Basic.div"), div.funId());
+		assertEquals(new ConstValue.I32(0), ((CcExp.CcCnst) div.args().at(1)).value());
+	}
+
+	@Test
+	void foldedProgramsKeepTheirResults() {
+		String src = """
+		answer = add (mul 6 7) (sub 10 (div 20 2))
+		scaled x = mul (add x 0) 3
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		module.getValue("answer").is(42);
+		module.getValue("scaled").apply(5).is(15);
+	}
+
+	@Test
+	void smallFunctionsAreInlinedAndFolded() {
+		String src = """
+		double x = add x x
+		quadruple x = double (double x)
+		answer = double 21
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertEquals(new ConstValue.I32(42), constantOf(module, "answer"));
+		assertFalse(calls(module.getOptimizedDecl("quadruple").body(), id("double")));
+	}
+
+	@Test
+	void recursiveFunctionsAreNotInlined() {
+		String src = """
+		sumTo n = if isZero n then 0 else add n (sumTo (sub n 1))
+		sumToPlus n = sumTo (add n 3)
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertTrue(calls(module.getOptimizedDecl("sumToPlus").body(), id("sumTo")));
+	}
+
+	@Test
+	void inlinedProgramsKeepTheirResults() {
+		String src = """
+		type List = Nil | Cons I32 List
+		twice f x = f (f x)
+		square x =
+		  let
+		    y = mul x x
+		  in
+		    y
+		head l =
+		  case l of
+		    Nil -> 0
+		    Cons h _ -> h
+		sumSquares a b = add (square (add a 1)) (square b)
+		firstOrZero l = add (head l) (head (Cons 1 l))
+		fourth x = twice square x
+		sumTo n = if isZero n then 0 else add n (sumTo (sub n 1))
+		heads = firstOrZero (Cons 5 Nil)
+		squares = sumSquares 2 3
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		module.getValue("squares").is(18);
+		module.getValue("heads").is(6);
+		module.getValue("fourth").apply(3).is(81);
+		module.getValue("sumTo").apply(4).is(10);
+	}
+
+	@Test
+	void knownClosureApplicationsBecomeDirectCalls() {
+		String src = """
+		make_adder x =
+		  let
+		    adder y =
+		      let
+		        adder2 z = add (add x y) z
+		      in
+		        adder2
+		  in
+		    adder
+		twiceWith k n =
+		  let
+		    plus x = add k x
+		    f = plus
+		  in
+		    f (f n)
+		answer = make_adder 3 4 5
+		twiced = twiceWith 10 1
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		assertEquals(new ConstValue.I32(12), constantOf(module, "answer"));
+		module.getOptimizedDecl("twiceWith").body().walk(exp -> {
+			assertFalse(exp instanceof CcExp.CcMkCls);
+			assertFalse(exp instanceof CcExp.CcClosureApp);
+		});
+		module.getValue("answer").is(12);
+		module.getValue("twiced").is(21);
+		module.getValue("make_adder").apply(1).apply(2).apply(3).is(6);
+	}
+
+	@Test
+	void functionsReturningClosuresGetUncurriedEntries() {
+		String src = """
+		compose f g = \\x -> f (g x)
+		inc x = add x 1
+		double x = mul x 2
+		composed = compose inc double 5
+		partial = compose inc double
+		applied = partial 7
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		assertEquals(3, module.getOptimizedDecl("compose.$uncurried").arity());
+		assertTrue(module.getOptimizedDecl("compose").body() instanceof CcExp.CcMkCls);
+		assertFalse(calls(module.getOptimizedDecl("composed").body(), id("compose")));
+		module.getValue("composed").is(11);
+		module.getValue("applied").is(15);
+	}
+
+	@Test
+	void polymorphicFunctionsAreSpecializedAtConcreteTypes() {
+		String src = """
+		type List a = Nil | Cons a (List a)
+		foldl func acc list =
+		  case list of
+		    Nil -> acc
+		    Cons x xs -> foldl func (func x acc) xs
+		range n acc = if isZero n then acc else range (sub n 1) (Cons n acc)
+		total n = foldl (\\x s -> add x s) 0 (range n Nil)
+		again n = foldl (\\x s -> mul x s) 1 (range n Nil)
+		flags b = foldl (\\x s -> if x then s else False) True (Cons b (Cons True Nil))
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		Id spec = id("foldl.$spec0");
+		assertTrue(calls(module.getOptimizedDecl("total").body(), spec));
+		assertTrue(calls(module.getOptimizedDecl("again").body(), spec));
+		assertTrue(calls(module.getOptimizedDecl("foldl.$spec0").body(), spec));
+		assertFalse(calls(module.getOptimizedDecl("foldl.$spec0").body(), id("foldl")));
+		assertTrue(calls(module.getOptimizedDecl("flags").body(), id("foldl.$spec1")));
+		module.getValue("total").apply(100).is(5050);
+		module.getValue("again").apply(5).is(120);
+		module.getValue("flags").apply(false).is(false);
+		module.getValue("flags").apply(true).is(true);
+	}
+
+	@Test
+	void specializationAtDistinctTypeArgumentsKeepsLocalTypes() {
+		String src = """
+		type List a = Nil | Cons a (List a)
+		foldl func acc list =
+		  case list of
+		    Nil -> acc
+		    Cons x xs ->
+		      let
+		        next = func x acc
+		      in
+		        foldl func next xs
+		count b = foldl (\\x s -> if x then add s 1 else s) 0 (Cons b (Cons True (Cons False Nil)))
+		anyPositive n = foldl (\\x s -> if s then True else isZero (sub x n)) False (Cons 1 (Cons 2 Nil))
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		assertTrue(calls(module.getOptimizedDecl("count").body(), id("foldl.$spec0")));
+		assertTrue(calls(module.getOptimizedDecl("anyPositive").body(), id("foldl.$spec1")));
+		module.getValue("count").apply(true).is(2);
+		module.getValue("count").apply(false).is(1);
+		module.getValue("anyPositive").apply(2).is(true);
+		module.getValue("anyPositive").apply(3).is(false);
+	}
+
+	@Test
+	void closedConstantsAreEvaluatedAtCompileTime() {
+		String src = """
+		type List = Nil | Cons I32 List
+		sum list =
+		  case list of
+		    Nil -> 0
+		    Cons hd tl -> add hd (sum tl)
+		range n acc = if isZero n then acc else range (sub n 1) (Cons n acc)
+		ans2 = sum (Cons 3 (Cons 2 (Cons 1 Nil)))
+		table = range 3 Nil
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		assertEquals(new ConstValue.I32(6), constantOf(module, "ans2"));
+		assertFalse(calls(module.getOptimizedDecl("table").body(), id("range")));
+		module.getValue("ans2").is(6);
+		module.getValue("table").isWrittenIn("Cons 1 (Cons 2 (Cons 3 Nil))");
+	}
+
+	@Test
+	void constantsThatDoNotFinishAreLeftForRuntime() {
+		String src = """
+		loop n = loop (add n 1)
+		forever = loop 1
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertTrue(calls(module.getOptimizedDecl("forever").body(), id("loop")));
+	}
+
+	@Test
+	void selfReferentialConstantsAreLeftForRuntime() {
+		String src = """
+		type List = Nil | Cons I32 List
+		ones = Cons 1 ones
+		a = b
+		b = a
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertTrue(refers(module.getOptimizedDecl("ones").body(), id("ones")));
+		assertTrue(refers(module.getOptimizedDecl("a").body(), id("b")));
+		assertTrue(refers(module.getOptimizedDecl("b").body(), id("a")));
+	}
+
+	@Test
+	void sharedConstantsAreNotExpandedBeyondTheLimit() {
+		String src = """
+		type Tree = Leaf | Node Tree Tree
+		t0 = Node Leaf Leaf
+		t1 = Node t0 t0
+		t2 = Node t1 t1
+		t3 = Node t2 t2
+		t4 = Node t3 t3
+		t5 = Node t4 t4
+		t6 = Node t5 t5
+		t7 = Node t6 t6
+		t8 = Node t7 t7
+		t9 = Node t8 t8
+		t10 = Node t9 t9
+		t11 = Node t10 t10
+		t12 = Node t11 t11
+		t13 = Node t12 t12
+		t14 = Node t13 t13
+		t15 = Node t14 t14
+		t16 = Node t15 t15
+		t17 = Node t16 t16
+		t18 = Node t17 t17
+		t19 = Node t18 t18
+		t20 = Node t19 t19
+		t21 = Node t20 t20
+		t22 = Node t21 t21
+		t23 = Node t22 t22
+		t24 = Node t23 t23
+		t25 = Node t24 t24
+		t26 = Node t25 t25
+		t27 = Node t26 t26
+		t28 = Node t27 t27
+		t29 = Node t28 t28
+		t30 = Node t29 t29
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.OPTIMIZE);
+
+		assertFalse(refers(module.getOptimizedDecl("t2").body(), id("t1")));
+		assertTrue(refers(module.getOptimizedDecl("t30").body(), id("t29")));
+	}
+
+	@Test
+	void casesOnLocallyBuiltConstructorsAreResolved() {
+		String src = """
+		type List = Nil | Cons I32 List
+		head l =
+		  case l of
+		    Nil -> 0
+		    Cons h _ -> h
+		tail l =
+		  case l of
+		    Nil -> Nil
+		    Cons _ t -> t
+		firstOf x = head (Cons x Nil)
+		rebuilt x l = tail (Cons x (Cons x l))
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		assertEquals(id("firstOf.x"), ((CcExp.CcVar) module.getOptimizedDecl("firstOf").body()).id());
+		module.getOptimizedDecl("rebuilt").body().walk(exp ->
+				assertFalse(exp instanceof CcExp.CcCase));
+		module.getValue("firstOf").apply(7).is(7);
+	}
+
+	@Test
+	void letsAreFloatedIntoTheBranchesThatUseThem() {
+		String src = """
+		sumTo n = if isZero n then 0 else add n (sumTo (sub n 1))
+		square n =
+		  let
+		    sq = mul n n
+		  in
+		    if isZero n then 1 else sq
+		unused n =
+		  let
+		    m = add n 1
+		  in
+		    n
+		divides n =
+		  let
+		    q = div 10 n
+		  in
+		    n
+		eager n =
+		  let
+		    s = sumTo n
+		  in
+		    if isZero n then 0 else s
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		CcExp.CcIf square = (CcExp.CcIf) module.getOptimizedDecl("square").body();
+		assertTrue(calls(square.elseExp(), Id.intern("Basic.mul")));
+		assertEquals(id("unused.n"), ((CcExp.CcVar) module.getOptimizedDecl("unused").body()).id());
+		assertTrue(module.getOptimizedDecl("divides").body() instanceof CcExp.CcLet);
+		assertTrue(module.getOptimizedDecl("eager").body() instanceof CcExp.CcLet);
+		module.getValue("square").apply(0).is(1);
+		module.getValue("square").apply(4).is(16);
+		module.getValue("eager").apply(4).is(10);
+	}
+
+	@Test
+	void invariantLetsAreHoistedOutOfClosures() {
+		String src = """
+		type List = Nil | Cons I32 List
+		map f l =
+		  case l of
+		    Nil -> Nil
+		    Cons h t -> Cons (f h) (map f t)
+		sum l =
+		  case l of
+		    Nil -> 0
+		    Cons h t -> add h (sum t)
+		mapAdd x l =
+		  let
+		    f y =
+		      let
+		        sq = mul x x
+		      in
+		        add sq y
+		  in
+		    map f l
+		run x = sum (mapAdd x (Cons 1 (Cons 2 Nil)))
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.BYTECODE_GEN);
+
+		boolean[] hoisted = {false};
+		module.getOptimizedDecl("mapAdd").body().walk(exp -> {
+			if(exp instanceof CcExp.CcMkCls mkCls && mkCls.implId().simpleName().equals("$hoisted")) {
+				hoisted[0] = true;
+				assertEquals(2, mkCls.caps().size());
+			}
+		});
+		assertTrue(hoisted[0]);
+		module.getValue("run").apply(3).is(21);
+	}
+
+	private static ConstValue constantOf(ModuleTester module, String name) {
+		return ((CcExp.CcCnst) module.getOptimizedDecl(name).body()).value();
+	}
+
+	private static boolean calls(CcExp exp, Id funId) {
+		boolean[] found = {false};
+		exp.walk(sub -> found[0] |= sub instanceof CcExp.CcDirectApp app && app.funId().equals(funId));
+		return found[0];
+	}
+
+	/**
+	 * 引数のない宣言の参照はクロージャの作成になる
+	 */
+	private static boolean refers(CcExp exp, Id declId) {
+		boolean[] found = {false};
+		exp.walk(sub -> found[0] |= sub instanceof CcExp.CcMkCls cls && cls.implId().equals(declId));
+		return found[0];
+	}
+
+	private static Id id(String name) {
+		return Id.intern("Main." + name);
+	}
+}
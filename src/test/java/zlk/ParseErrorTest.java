@@ -1,9 +1,16 @@
 package zlk;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
+import zlk.ast.Decl;
+import zlk.ast.Exp;
+import zlk.parser.Lexer;
+import zlk.parser.Parser;
+import zlk.parser.Tokenized;
 import zlk.tester.ModuleTester;
 import zlk.tester.ModuleTester.CompileLevel;
 import zlk.util.collection.IntSeq;
@@ -153,4 +160,90 @@ public class ParseErrorTest {
 		assertEquals(2, module.getAst().decls().size());
 	}
 
+	@Test
+	void ifStylesSharingTheFirstTokenBothParse() {
+		String src = """
+		oneLine n = if isZero n then 1 else 2
+		twoBlock n =
+		  if isZero n then
+		    1
+		  else
+		    2
+		nested n =
+		  if isZero n then
+		    if isZero 1 then 3 else 4
+		  else
+		    5
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.PARSE);
+
+		assertEquals(0, module.getParseErrors().size());
+		module.getAst().decls().forEach(decl ->
+				assertTrue(((Decl.ValDecl) decl).body() instanceof Exp.If));
+	}
+
+	@Test
+	void illegalTokenAfterOtherAlternativesFailIsAnExpressionError() {
+		String src = """
+		record = { x = ? }
+		target =
+		  case ? of
+		    _ -> 1
+		lambda = \\x -> ?
+		after =
+		  1
+		""";
+
+		var module = new ModuleTester(src, CompileLevel.PARSE);
+		IntSeq lines = module.getParseErrorStartLines();
+
+		assertEquals(3, lines.size());
+		assertEquals(1, lines.at(0));
+		assertEquals(3, lines.at(1));
+		assertEquals(5, lines.at(2));
+		assertEquals(4, module.getAst().decls().size());
+	}
+
+	@Test
+	void sourceEndingInsideAnExpressionStillParses() {
+		String src = """
+		ok = f x
+		bad = ?""";
+
+		var module = new ModuleTester(src, CompileLevel.PARSE);
+		IntSeq lines = module.getParseErrorStartLines();
+
+		assertEquals(1, lines.size());
+		assertEquals(2, lines.head());
+		assertEquals(2, module.getAst().decls().size());
+		assertEquals(0, new ModuleTester("ok = f x\nlast = add 1", CompileLevel.PARSE).getParseErrors().size());
+	}
+
+	@Test
+	void packratParsingBuildsTheSameTree() {
+		String src = """
+		module Main
+		f n =
+		  if isZero n then
+		    if isZero (sub n 1) then
+		      (add (mul n 2) 1)
+		    else
+		      case n of
+		        _ -> n
+		  else
+		    0
+		bad =
+		  ?
+		after = (((1)))
+		""";
+
+		Tokenized plain = new Lexer("Main.zlk", src).lex();
+		Tokenized packrat = new Lexer("Main.zlk", src).lex();
+
+		String expected = Parser.parse(plain, false).buildString();
+		assertEquals(expected, Parser.parse(packrat, true).buildString());
+		assertFalse(packrat.isPackrat());
+	}
+
 }
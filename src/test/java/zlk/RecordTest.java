@@ -1,6 +1,7 @@
 package zlk;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -18,6 +19,7 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
 import zlk.runtime.ArrayRecord;
+import zlk.runtime.ShapeRecord;
 import zlk.runtime.ZlkRecord;
 
 class RecordTest {
@@ -205,6 +207,88 @@ class RecordTest {
 				"broken"));
 	}
 
+	@Test
+	void shapeBootstrapCreatesSpecializedRecords() throws Throwable {
+		CallSite site = ShapeRecord.bootstrapLiteral(
+				MethodHandles.lookup(),
+				"recordLiteral",
+				MethodType.methodType(ZlkRecord.class, Object.class, Object.class),
+				"v1;1#x1#y");
+
+		ZlkRecord record = (ZlkRecord) site.dynamicInvoker().invokeExact((Object) 1, (Object) 2);
+
+		assertTrue(record instanceof ShapeRecord);
+		assertFalse(record instanceof ArrayRecord);
+		assertEquals(List.of("x", "y"), record.names());
+		assertEquals(2, record.get("y"));
+		assertEquals(3, record.update("x", 3).get("x"));
+		assertEquals(1, record.get("x"));
+		assertThrows(IllegalArgumentException.class, () -> record.get("z"));
+		assertEquals(ZlkRecord.of(Map.of("x", 1, "y", 2)), record);
+		assertEquals(new PairRecord(new Pair(1, 2)), record);
+		assertEquals(record.hashCode(), ZlkRecord.of(Map.of("x", 1, "y", 2)).hashCode());
+		assertEquals("{ x = 1, y = 2 }", record.toString());
+	}
+
+	@Test
+	void shapeAccessSitesAcceptEveryImplementation() throws Throwable {
+		ZlkRecord shaped = (ZlkRecord) ShapeRecord.bootstrapLiteral(
+				MethodHandles.lookup(),
+				"recordLiteral",
+				MethodType.methodType(ZlkRecord.class, Object.class, Object.class),
+				"v1;1#x1#y").dynamicInvoker().invokeExact((Object) 1, (Object) 2);
+		ZlkRecord array = ZlkRecord.of(Map.of("x", 3, "y", 4));
+		ZlkRecord wrapper = new PairRecord(new Pair(5, 6));
+
+		CallSite get = ShapeRecord.bootstrapGet(
+				MethodHandles.lookup(),
+				"recordGet",
+				MethodType.methodType(Object.class, ZlkRecord.class),
+				"y");
+		CallSite update = ShapeRecord.bootstrapUpdate(
+				MethodHandles.lookup(),
+				"recordUpdate",
+				MethodType.methodType(ZlkRecord.class, ZlkRecord.class, Object.class),
+				"v1;1#x");
+
+		for(ZlkRecord record : List.of(shaped, array, wrapper, shaped)) {
+			Object y = (Object) get.dynamicInvoker().invokeExact(record);
+			ZlkRecord updated = (ZlkRecord) update.dynamicInvoker().invokeExact(record, (Object) 0);
+
+			assertEquals(record.get("y"), y);
+			assertEquals(0, updated.get("x"));
+			assertEquals(record.get("y"), updated.get("y"));
+		}
+	}
+
+	@Test
+	void shapeUpdateSitesReplaceSeveralFieldsAtOnce() throws Throwable {
+		ZlkRecord shaped = (ZlkRecord) ShapeRecord.bootstrapLiteral(
+				MethodHandles.lookup(),
+				"recordLiteral",
+				MethodType.methodType(ZlkRecord.class, Object.class, Object.class, Object.class),
+				"v1;1#a1#b1#c").dynamicInvoker().invokeExact((Object) 1, (Object) 2, (Object) 3);
+		ZlkRecord array = ZlkRecord.of(Map.of("a", 1, "b", 2, "c", 3));
+
+		CallSite update = ShapeRecord.bootstrapUpdate(
+				MethodHandles.lookup(),
+				"recordUpdate",
+				MethodType.methodType(ZlkRecord.class, ZlkRecord.class, Object.class, Object.class),
+				"v1;1#a1#c");
+
+		for(ZlkRecord record : List.of(shaped, array, shaped)) {
+			ZlkRecord updated = (ZlkRecord) update.dynamicInvoker().invokeExact(record, (Object) 10, (Object) 30);
+
+			assertEquals(ZlkRecord.of(Map.of("a", 10, "b", 2, "c", 30)), updated);
+			assertEquals(record.getClass(), updated.getClass());
+		}
+		assertThrows(IllegalArgumentException.class, () -> ShapeRecord.bootstrapUpdate(
+				MethodHandles.lookup(),
+				"recordUpdate",
+				MethodType.methodType(ZlkRecord.class, ZlkRecord.class, Object.class),
+				"v1;1#a1#c"));
+	}
+
 	@Test
 	void generatedInvokeDynamicCreatesRecordLiteral() throws ReflectiveOperationException {
 		String className = "zlk/runtime/GeneratedRecordLiteral";
@@ -0,0 +1,27 @@
+package zlk.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class LexerTest {
+
+	@Test
+	void repeatedIdentifiersShareOneString() {
+		String src = """
+		module Main
+		ofs cases = if isZero cases then 0 else iff cases
+		""";
+
+		List<Token> tokens = new ArrayList<>();
+		new Lexer("Main.zlk", src).lex().forEach(tokens::add);
+		List<Token> cases = tokens.stream().filter(token -> token.str().equals("cases")).toList();
+
+		assertEquals(3, cases.size());
+		cases.forEach(token -> assertSame(cases.get(0).str(), token.str()));
+	}
+}
@@ -0,0 +1,67 @@
+package zlk.parser;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.Test;
+
+import zlk.ast.Module;
+import zlk.util.collection.Seq;
+
+public class PegCompilerTest {
+
+	@Test
+	void compiledParserBuildsTheSameTreeAsCombinators() {
+		Seq<String> srcs = Seq.of(
+				"""
+				module Main
+				f n =
+				  if isZero n then
+				    case n of
+				      0 -> if isZero 1 then 2 else 3
+				      _ ->
+				        case sub n 1 of
+				          _ -> n
+				  else
+				    0
+				""",
+				"""
+				module Main
+				point = { x = 1, y = { z = 2 } }
+				moved p = { p | x = add p.x 1 }
+				depth = point.y.z
+				""",
+				"""
+				module Main
+				twice f x = f (f x)
+				g = twice (\\n -> add n 1) 0
+				h = \\a b ->
+				  let
+				    c = add a b
+				  in
+				    mul c c
+				""",
+				"""
+				module Main
+				bad =
+				  ?
+				    nested
+				ill = f ?
+				type Maybe a = | ?
+				after = (((1)))
+				""");
+
+		srcs.forEach(PegCompilerTest::assertCompiledMatchesCombinators);
+	}
+
+	private static void assertCompiledMatchesCombinators(String src) {
+		Tokenized combinators = new Lexer("Main.zlk", src).lex();
+		Tokenized compiled = new Lexer("Main.zlk", src).lex();
+
+		Module expected = Parser.parseUncompiledForTest(combinators);
+		assertNotNull(expected);
+		assertFalse(combinators.hasNext());
+		assertEquals(expected.buildString(), Parser.parse(compiled).buildString());
+	}
+}
@@ -0,0 +1,80 @@
+package zlk.parser;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import zlk.parser.Token.Kind;
+import zlk.util.collection.Seq;
+
+public class PegTest {
+
+	@Test
+	void ifStylesAreBothListedUnderIf() {
+		Peg<?>[] candidates = candidatesOf(Parser.ifExp);
+		Peg<?>[][] table = Peg.dispatchTable(candidates);
+
+		assertArrayEquals(candidates, table[Kind.IF.ordinal()]);
+		for(int k = 0; k <= Peg.END_OF_SOURCE; k++) {
+			if(k != Kind.IF.ordinal()) {
+				assertEquals(0, table[k].length);
+			}
+		}
+	}
+
+	@Test
+	void illegalTokenDispatchesOnlyToPanicAExp() {
+		Peg<?>[][] table = Peg.dispatchTable(candidatesOf(Parser.aExp));
+
+		assertArrayEquals(new Peg<?>[] {Parser.panicAExp}, table[Kind.ILL.ordinal()]);
+		assertEquals(0, table[Peg.END_OF_SOURCE].length);
+	}
+
+	@Test
+	void unknownAndNullableCandidatesAreListedEverywhere() {
+		Peg<Object> handWritten = new Peg<>() {
+			@Override
+			public Object parse(Tokenized src) {
+				return null;
+			}
+		};
+		Peg<?> nullable = Peg.optional(Parser.DIGITS);
+		Peg<?>[][] table = Peg.dispatchTable(new Peg<?>[] {Parser.LCID, handWritten, nullable});
+
+		assertNull(handWritten.first());
+		assertArrayEquals(new Peg<?>[] {Parser.LCID, handWritten, nullable}, table[Kind.LCID.ordinal()]);
+		for(int k = 0; k <= Peg.END_OF_SOURCE; k++) {
+			if(k != Kind.LCID.ordinal()) {
+				assertArrayEquals(new Peg<?>[] {handWritten, nullable}, table[k]);
+			}
+		}
+	}
+
+	@Test
+	void recursiveLazyReportsUnknown() {
+		@SuppressWarnings("unchecked")
+		Peg<Object>[] self = new Peg[1];
+		Peg<Object> recursive = Peg.lazy(() -> self[0]);
+		self[0] = Peg.choice(
+				Peg.sequence(recursive, Parser.DOT, (r, _) -> r),
+				Parser.LCID);
+
+		assertNull(recursive.first());
+		assertNull(self[0].first());
+		assertTrue(Parser.exp_.first().kinds().contains(Kind.IF));  // 再帰しない参照は解決される
+	}
+
+	private static Peg<?>[] candidatesOf(Peg<?> choice) {
+		Peg.Node node = choice.node();
+		if(node instanceof Peg.Node.Memo(int _, Peg<?> p)) {
+			node = p.node();
+		}
+		Seq<Peg<?>> candidates = ((Peg.Node.Choice) node).candidates();
+		Peg<?>[] array = new Peg<?>[candidates.size()];
+		candidates.forEachIndexed((i, candidate) -> array[i] = candidate);
+		return array;
+	}
+}
@@ -18,6 +18,7 @@ import zlk.ast.Decl;
 import zlk.ast.Exp;
 import zlk.ast.Module;
 import zlk.bytecodegen.BytecodeGenerator;
+import zlk.clcalc.CcFunDecl;
 import zlk.clcalc.CcModule;
 import zlk.clconv.ClosureConverter;
 import zlk.common.LocationHolder;
@@ -28,6 +29,7 @@ import zlk.core.Builtin;
 import zlk.idcalc.ExpOrPattern;
 import zlk.idcalc.IcModule;
 import zlk.nameeval.NameEvaluator;
+import zlk.optimizer.Optimizer;
 import zlk.parser.Tokenized;
 import zlk.patterncheck.PatternChecker;
 import zlk.patterncheck.PcError;
@@ -50,6 +52,7 @@ public class ModuleTester {
 		TYPE_RECON,
 		PATTERN_CHECK,
 		CLOSURE_CONV,
+		OPTIMIZE,
 		BYTECODE_GEN,
 		;
 
@@ -73,6 +76,7 @@ public class ModuleTester {
 	private IdMap<Type> types = null;
 	private Seq<PcError> patternErrors = null;
 	private CcModule clconv = null;
+	private CcModule optimized = null;
 	private final Map<String, ValueTester> functions = new HashMap<>();
 
 	public ModuleTester(String src, CompileLevel level) {
@@ -82,6 +86,13 @@ public class ModuleTester {
 
 		Tokenized tokens = new zlk.parser.Lexer(TARGET_FILE_NAME, this.src).lex();
 		this.ast = zlk.parser.Parser.parse(tokens);
+
+		// packratモードでも同じ木になることを確かめる
+		Tokenized packratTokens = new zlk.parser.Lexer(TARGET_FILE_NAME, this.src).lex();
+		String packratAst = zlk.parser.Parser.parse(packratTokens, true).buildString();
+		if(!packratAst.equals(ast.buildString())) {
+			throw new IllegalStateException("packrat parsing built a different tree:\n" + packratAst);
+		}
 		this.parseErrors = collectParseErrors(ast);
 
 		if(this.compileLevel == CompileLevel.PARSE) {
@@ -108,7 +119,7 @@ public class ModuleTester {
 		Builtin.functions().forEach(fun -> types.put(fun.id(), fun.type()));
 		module.types().forEach(union ->
 				union.ctors().forEach(ctor ->
-					types.put(ctor.id(), Type.fromSeq(Seq.concat(ctor.args(), Seq.of(new Type.CtorApp(union.id())))))));
+					types.put(ctor.id(), Type.fromSeq(Seq.concat(ctor.args(), Seq.of(new Type.CtorApp(union.id(), union.vars())))))));
 		Result<Seq<TypeError>, IdMap<Type>> reconResult = TypeReconstructor.recon(cint, freshFlex);
 		reconResult.unwrap().forEach((id, ty) -> types.put(id, ty));
 		callSiteTypes = result.resolvedNodeTypes();
@@ -127,9 +138,14 @@ public class ModuleTester {
 			return;
 		}
 
+		this.optimized = Optimizer.optimize(clconv, types);
+		if(this.compileLevel == CompileLevel.OPTIMIZE) {
+			return;
+		}
+
 		record NameAndBytecode(String name, byte[] bytecode) {}
 		List<NameAndBytecode> classes = new ArrayList<>();
-		new BytecodeGenerator(clconv, types, Builtin.functions(), TARGET_FILE_NAME).compile((name, bytecode) -> classes.add(new NameAndBytecode(name, bytecode)));
+		new BytecodeGenerator(optimized, types, Builtin.functions(), TARGET_FILE_NAME).compile((name, bytecode) -> classes.add(new NameAndBytecode(name, bytecode)));
 		classes.forEach(clz -> {
 			DumpOnFailureWatcher.setLastClassDump(clz.name, clz.bytecode);  // TODO: 並列化のためにBeforeEachCallbackでStoreにする
 			defineClass(clz.name, clz.bytecode);
@@ -174,6 +190,20 @@ public class ModuleTester {
 		return patternErrors;
 	}
 
+	public CcModule getOptimizedModule() {
+		return optimized;
+	}
+
+	/**
+	 * 最適化後のトップレベル関数を返す
+	 */
+	public CcFunDecl getOptimizedDecl(String name) {
+		Id id = Id.intern(TARGET_MODULE_NAME + "." + name);
+		return optimized.funcs()
+				.findFirst(decl -> decl.id().equals(id))
+				.orElseThrow(() -> new IllegalArgumentException("Function not found: " + name));
+	}
+
 	private TypeTester toTypeTester(Type ty) {
 		return new TypeTester(
 				ty,